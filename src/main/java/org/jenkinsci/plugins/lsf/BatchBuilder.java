@@ -26,37 +26,47 @@ package org.jenkinsci.plugins.lsf;
 import com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier;
 import com.michelin.cio.hudson.plugins.copytoslave.CopyToSlaveBuildWrapper;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
-import hudson.model.TaskListener;
+import hudson.model.Cause;
+import hudson.model.Executor;
+import hudson.model.Project;
 import hudson.slaves.Cloud;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
-import hudson.tasks.Shell;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import jenkins.model.Jenkins;
-import jenkins.util.BuildListenerAdapter;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.io.FileUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -71,6 +81,17 @@ public class BatchBuilder extends Builder {
     private String job;
     // the files that need to be downloaded after job completion
     private String filesToDownload = "";
+    // the files that are downloaded in the background once the result of
+    // the build is final
+    private String filesToDownloadLater = "";
+    // how long the job may pend before it's also run on the slave itself
+    // (0 turns the local run off)
+    private int burstAfterMinutes;
+    // true if only the changed parts of the files to download are sent
+    private boolean deltaDownload;
+    // configuration for checking if the job should be submitted before its
+    // files are staged
+    private boolean stageWhilePending;
     // the destination path to which the files will be downloaded
     private String downloadDestination;
     // the files that need to be sent before executing the job
@@ -81,12 +102,87 @@ public class BatchBuilder extends Builder {
     private String uploadedFiles = getUploadedFiles();
     // configuration for checking if email should be sent
     private boolean sendEmail = false;
+    // configuration for checking if results of identical jobs should be reused
+    private boolean useResultCache = false;
+    // configuration for checking if the job may be submitted together with
+    // the short jobs of other builds
+    private boolean packShortJobs = false;
+    // configuration for checking if the job should be submitted as soon as
+    // the build enters the queue
+    private boolean submitWhileQueued = false;
+    // resource requirements of the job (0, empty or false means the default
+    // of the cloud)
+    private int slots;
+    private int memoryMB;
+    private String span = "";
+    private String affinity = "";
+    private boolean exclusive = false;
+    private String hostSelection = "";
+    // how long the running job may make no progress before it's treated as
+    // stalled (0 turns the stall detection off)
+    private int stallMinutes;
+    // what is done with a stalled job
+    private String stallAction = STALL_WARN;
+    // the stalled job is reported in the console
+    public static final String STALL_WARN = "warn";
+    // the diagnostics of the stalled job are printed as well
+    public static final String STALL_DIAGNOSE = "diagnose";
+    // the stalled job is diagnosed, killed and put back to the queue
+    public static final String STALL_REQUEUE = "requeue";
     // file name for the communication between master and slave
     private static final String COMMUNICATION_FILE = "output";
     // name of the file where the running job output is saved
     private static final String PROGRESS_FILE = "jobProgress";
+    // build variable which makes the build bypass the result cache
+    private static final String FORCE_CACHE_MISS_VARIABLE
+            = "LSF_FORCE_CACHE_MISS";
+    // suffixes of the files of a packed job (next to its job script)
+    private static final String PACK_SUFFIX = ".pack";
+    // the jobs whose previous run took longer aren't packed
+    private static final long PACKABLE_RUN_MILLISECONDS = 60000;
+    private static final String PACKED_OUTPUT_SUFFIX = ".out";
+    private static final String PACKED_EXIT_SUFFIX = ".exit";
+    private static final String PACKED_CANCEL_SUFFIX = ".cancel";
+    // how long the members wait for the submission of a pack after it was
+    // closed
+    private static final long PACK_SUBMISSION_MAX_WAIT_MILLISECONDS
+            = 5 * 60 * 1000;
+    // suffixes of the files of the local run of a job (next to its job
+    // script), the run itself is in the directory with the first suffix
+    private static final String LOCAL_RUN_SUFFIX = ".local";
+    private static final String LOCAL_OUTPUT_SUFFIX = ".local.out";
+    private static final String LOCAL_EXIT_SUFFIX = ".local.exit";
+    private static final String LOCAL_PID_SUFFIX = ".local.pid";
+    // how long a build waits before it tries to reattach to a job again when
+    // the batch system didn't answer
+    private static final int REATTACH_RETRY_SECONDS = 300;
+    // how often and how long the status of a job killed because its local
+    // run ended first is checked until the job ends
+    private static final long KILLED_JOB_CHECK_MILLISECONDS = 5000;
+    private static final long KILLED_JOB_MAX_WAIT_MILLISECONDS = 5 * 60 * 1000;
+    // suffix of the file which releases a job submitted before its files
+    // were staged
+    private static final String STAGED_SUFFIX = ".staged";
+    // suffix of the directory in which the files to download later wait for
+    // their download
+    private static final String LATER_SUFFIX = ".later";
+    // how old the files transferred next to the scratch directories get
+    // before the jobs remove them
+    private static final int TRANSFERRED_FILE_MAX_AGE_MINUTES = 24 * 60;
+    // names of the transferred files (a job file name followed by a file)
+    private static final String TRANSFERRED_FILE_PATTERN
+            = "JOB-????????-????-????-????-????????????-*";
+    // separates the output and the exit code of a packed job
+    private static final String PACKED_RESULT_SEPARATOR
+            = "LSF-PACKED-RESULT-SEPARATOR";
+    // how long a build waits for the job that is being submitted for it
+    // while it was queued
+    private static final long QUEUED_SUBMISSION_MAX_WAIT_MILLISECONDS
+            = 5 * 60 * 1000;
     private String masterWorkingDirectory;
     private String slaveWorkingDirectory;
+    // the file system shared by master and the slave (null if there is none)
+    private transient SharedFileSystem sharedFileSystem;
 
     /**
      * @param job
@@ -133,6 +229,159 @@ public class BatchBuilder extends Builder {
         return sendEmail;
     }
 
+    public boolean getUseResultCache() {
+        return useResultCache;
+    }
+
+    @DataBoundSetter
+    public void setUseResultCache(boolean useResultCache) {
+        this.useResultCache = useResultCache;
+    }
+
+    public boolean getPackShortJobs() {
+        return packShortJobs;
+    }
+
+    @DataBoundSetter
+    public void setPackShortJobs(boolean packShortJobs) {
+        this.packShortJobs = packShortJobs;
+    }
+
+    public boolean getSubmitWhileQueued() {
+        return submitWhileQueued;
+    }
+
+    @DataBoundSetter
+    public void setSubmitWhileQueued(boolean submitWhileQueued) {
+        this.submitWhileQueued = submitWhileQueued;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    @DataBoundSetter
+    public void setSlots(int slots) {
+        this.slots = slots;
+    }
+
+    public int getMemoryMB() {
+        return memoryMB;
+    }
+
+    @DataBoundSetter
+    public void setMemoryMB(int memoryMB) {
+        this.memoryMB = memoryMB;
+    }
+
+    public String getSpan() {
+        return span;
+    }
+
+    @DataBoundSetter
+    public void setSpan(String span) {
+        this.span = span;
+    }
+
+    public String getAffinity() {
+        return affinity;
+    }
+
+    @DataBoundSetter
+    public void setAffinity(String affinity) {
+        this.affinity = affinity;
+    }
+
+    public boolean getExclusive() {
+        return exclusive;
+    }
+
+    @DataBoundSetter
+    public void setExclusive(boolean exclusive) {
+        this.exclusive = exclusive;
+    }
+
+    public String getHostSelection() {
+        return hostSelection;
+    }
+
+    @DataBoundSetter
+    public void setHostSelection(String hostSelection) {
+        this.hostSelection = hostSelection;
+    }
+
+    public int getStallMinutes() {
+        return stallMinutes;
+    }
+
+    @DataBoundSetter
+    public void setStallMinutes(int stallMinutes) {
+        this.stallMinutes = stallMinutes;
+    }
+
+    public String getStallAction() {
+        if (stallAction == null || stallAction.isEmpty()) {
+            return STALL_WARN;
+        }
+        return stallAction;
+    }
+
+    @DataBoundSetter
+    public void setStallAction(String stallAction) {
+        this.stallAction = stallAction;
+    }
+
+    public String getFilesToDownloadLater() {
+        return filesToDownloadLater;
+    }
+
+    @DataBoundSetter
+    public void setFilesToDownloadLater(String filesToDownloadLater) {
+        this.filesToDownloadLater = filesToDownloadLater;
+    }
+
+    public int getBurstAfterMinutes() {
+        return burstAfterMinutes;
+    }
+
+    @DataBoundSetter
+    public void setBurstAfterMinutes(int burstAfterMinutes) {
+        this.burstAfterMinutes = burstAfterMinutes;
+    }
+
+    public boolean getDeltaDownload() {
+        return deltaDownload;
+    }
+
+    @DataBoundSetter
+    public void setDeltaDownload(boolean deltaDownload) {
+        this.deltaDownload = deltaDownload;
+    }
+
+    public boolean getStageWhilePending() {
+        return stageWhilePending;
+    }
+
+    @DataBoundSetter
+    public void setStageWhilePending(boolean stageWhilePending) {
+        this.stageWhilePending = stageWhilePending;
+    }
+
+    /**
+     * @param cloud
+     * @return the resource requirements of the job with the defaults of the
+     * cloud for the ones that aren't set
+     */
+    protected ResourceRequirements getResourceRequirements(BatchCloud cloud) {
+        ResourceRequirements requirements = new ResourceRequirements(slots,
+                memoryMB, span, affinity, exclusive, hostSelection);
+        if (cloud == null) {
+            return requirements;
+        }
+        return requirements.withDefaults(
+                cloud.getDefaultResourceRequirements());
+    }
+
     /**
      * This is where the interaction between Jenkins and LSF happens.
      *
@@ -147,99 +396,705 @@ public class BatchBuilder extends Builder {
     public boolean perform(AbstractBuild<?, ?> build,
             Launcher launcher, BuildListener listener)
             throws InterruptedException, IOException {
-        masterWorkingDirectory = Jenkins.getInstance().root.getAbsolutePath()
-                + "/userContent/" + build.getProject().getName() + "/";
+        masterWorkingDirectory = getMasterWorkingDirectory(build.getProject());
         BatchSystem batchSystem = new LSF(build, launcher,
                 listener, COMMUNICATION_FILE, masterWorkingDirectory);
-        CopyToMasterNotifier copyFileToMaster
-                = new CopyToMasterNotifier(COMMUNICATION_FILE, "",
-                        true, masterWorkingDirectory, true);
+        BuildTimeline timeline = getTimeline(build);
         String jobStatus = "";
         // randomly generated job script name
         String jobFileName = "JOB-" + UUID.randomUUID().toString();
-        // a fake listener for hiding output of some 
-        // commands to make the console easier to read
-        BuildListenerAdapter fakeListener
-                = new BuildListenerAdapter(TaskListener.NULL);
         // gets the queue type from the cloud
         String queueType = getQueueType(build);
-        // stores the current working directory of the slave
-        slaveWorkingDirectory
-                = getSlaveWorkingDirectory(build, launcher, fakeListener);
-        // sends the selected files to the slave 
-        // and prepares the commands to send files to LSF
-        String sendFilesShellCommands = sendFiles(build, launcher, listener);
-        sendJobToSlave(build, launcher, listener, sendFilesShellCommands,
-                jobFileName);
-        // sets the correct permission of the file for execution
-        setPermissionOnJobFile(build, launcher, listener, jobFileName);
-        String jobId = batchSystem.submitJob(jobFileName, sendEmail, queueType);
+        BatchCloud cloud = getCloud(build);
+        if (cloud != null) {
+            cloud.configureCommands(batchSystem);
+        }
+        ResultCache resultCache = null;
+        String cacheKey = null;
+        if (useResultCache && cloud != null) {
+            resultCache = cloud.getResultCache();
+            cacheKey = ResultCache.computeKey(job, getInputFiles(), queueType,
+                    build.getBuildVariables(), getFilesToDownloadList(),
+                    downloadDestination);
+            if (isCacheMissForced(build, listener)) {
+                listener.getLogger().println("Result cache miss forced by "
+                        + FORCE_CACHE_MISS_VARIABLE + ".");
+            } else {
+                String cachedOutput = resultCache.restore(cacheKey,
+                        getDownloadDirectory(build));
+                if (cachedOutput != null) {
+                    listener.getLogger().println("Identical job found in the "
+                            + "result cache, the job is not submitted.");
+                    printJobOutput(listener, cachedOutput);
+                    return true;
+                }
+            }
+        }
+        // the whole job output (for storing it in the result cache)
+        StringBuilder jobOutput = new StringBuilder();
+        // the shell in which the commands of this build are run
+        CommandSession commandSession
+                = startCommandSession(build, launcher, listener);
+        batchSystem.setCommandSession(commandSession);
         try {
-            // command for counting lines in the result file 
-            //(for tracking of job progress)
-            Shell countNumberOfLines
-                    = new Shell("#!/bin/bash +x\n wc -l "
-                            + PROGRESS_FILE + " > " + COMMUNICATION_FILE);
+            // stores the current working directory of the slave
+            timeline.start(BuildTimeline.WORKING_DIRECTORY);
+            slaveWorkingDirectory = getSlaveWorkingDirectory(build,
+                    listener, batchSystem, queueType);
+            sharedFileSystem = getSharedFileSystem(cloud, listener);
+            batchSystem.setSharedFileSystem(sharedFileSystem,
+                    slaveWorkingDirectory);
+            // a job that was submitted while the build was queued
+            SpeculativeJob speculativeJob = claimSpeculativeJob(build,
+                    listener, cloud);
+            if (speculativeJob != null) {
+                // the job was staged in its own directory
+                slaveWorkingDirectory = speculativeJob.getDirectory();
+                sharedFileSystem = cloud.getSharedFileSystem();
+                batchSystem.setSharedFileSystem(sharedFileSystem,
+                        slaveWorkingDirectory);
+                batchSystem.setCommandDirectory(slaveWorkingDirectory);
+                jobFileName = speculativeJob.getJobFileName();
+            }
+            JobJournal journal = JobJournal.get();
+            String scriptHash = Util.getDigestOf(job + "\n" + filesToSend + "\n"
+                    + filesToDownload + "\n" + filesToDownloadLater);
+            String jobId = null;
+            // set when the job runs in a pack with the jobs of other builds
+            boolean packed = false;
             // used for output progress tracking 
             // (specifies how many lines to skip when printing job output file)
             int offset = 0;
-            // loops for checking the job's status and progress until 
-            // it reaches an ending state
-            while (!batchSystem.isEndStatus(jobStatus)) {
-                Thread.sleep(checkFrequencyMinutes * 60000);
-                jobStatus = batchSystem.getJobStatus(jobId);
-                listener.getLogger().println("JOB STATUS: " + jobStatus);
-                batchSystem.processStatus(jobStatus);
-                if (!batchSystem.isRunningStatus(jobStatus)) {
-                    continue;
+            // a job of an earlier build which was interrupted by a restart
+            JobJournal.Entry orphan = speculativeJob != null ? null
+                    : findJobToReattach(build, listener, batchSystem, journal,
+                            scriptHash);
+            if (orphan != null) {
+                jobFileName = orphan.getKey();
+                jobId = orphan.getJobId();
+                offset = orphan.getOffset();
+            } else if (speculativeJob != null) {
+                jobId = speculativeJob.getJobId();
+                timeline.add(BuildTimeline.QUEUED_SUBMISSION,
+                        speculativeJob.getSubmissionStart(),
+                        speculativeJob.getSubmissionEnd());
+                journal.recordStaging(jobFileName, build,
+                        slaveWorkingDirectory, scriptHash);
+                journal.recordSubmission(jobFileName, jobId);
+            } else if (isStagedWhilePending(build, cloud)) {
+                jobId = submitBeforeStaging(build, launcher, listener, cloud,
+                        batchSystem, timeline, journal, jobFileName,
+                        queueType, scriptHash);
+            } else {
+                // sends the selected files to the slave 
+                timeline.start(BuildTimeline.INPUT_STAGING);
+                List<String> sentFiles = sendFiles(build, launcher, listener);
+                timeline.start(BuildTimeline.SCRIPT_TRANSFER);
+                sendJobToSlave(build, launcher, listener, sentFiles,
+                        jobFileName, cloud, batchSystem);
+                // sets the correct permission of the file for execution
+                timeline.start(BuildTimeline.CHMOD);
+                setPermissionOnJobFile(batchSystem, listener, jobFileName);
+                batchSystem.setResourceRequirements(
+                        getResourceRequirements(cloud));
+                if (cloud != null) {
+                    // LSF keeps the limits of the groups of the project and
+                    // of the cloud
+                    batchSystem.setJobGroup(cloud.getJobGroups().prepare(
+                            batchSystem, cloud,
+                            build.getProject().getFullName()));
                 }
-                batchSystem.createJobProgressFile(jobId, PROGRESS_FILE);
-                countNumberOfLines.perform(build, launcher, fakeListener);
-                copyFileToMaster.perform(build, launcher, fakeListener);
-                BufferedReader fileReader = new BufferedReader(
-                        new FileReader(masterWorkingDirectory
-                                + COMMUNICATION_FILE));
-                String first_word = fileReader.readLine();
-                // checks if command didn't fail and the result file exists
-                if (first_word == null) {
-                    continue;
+                if (isPackable(build, cloud)) {
+                    jobId = submitPacked(batchSystem, cloud, listener,
+                            timeline, jobFileName, queueType);
+                    packed = jobId != null;
                 }
-                first_word = first_word.split(" ")[0];
-                if (first_word.equals("wc:")) {
-                    continue;
+                // packed jobs can't be reattached to, so they aren't journaled
+                if (!packed) {
+                    journal.recordStaging(jobFileName, build,
+                            slaveWorkingDirectory, scriptHash);
+                    timeline.start(BuildTimeline.SUBMISSION);
+                    jobId = submitJournaled(batchSystem, journal,
+                            jobFileName, queueType);
+                }
+            }
+            // set when the job is left running for a build after the restart
+            boolean detached = false;
+            // what was collected about the job once it ended
+            JobHarvest harvest = null;
+            // set when the job is also run on the slave itself
+            boolean localRun = false;
+            // the exit code of the local run if it ended before the job
+            Integer localExitCode = null;
+            // when the job was submitted (unknown for a job of an earlier
+            // build) and whether its queue wait was recorded
+            long submittedAt = speculativeJob != null
+                    ? speculativeJob.getSubmissionEnd()
+                    : System.currentTimeMillis();
+            boolean waitRecorded = orphan != null;
+            // when the job entered its current queue
+            long queuedAt = submittedAt;
+            try {
+                // how many times the job was put back to the queue
+                int requeues = 0;
+                StallDetector stallDetector = stallMinutes > 0
+                        ? new StallDetector(stallMinutes) : null;
+                // when the job was last checked against the pending SLA of
+                // the cloud
+                long slaCheckedAt = submittedAt;
+                // the queues the job was moved from
+                Set<String> leftQueues = new HashSet<String>();
+                // loops for checking the job's status and progress until 
+                // it reaches an ending state
+                while (!batchSystem.isEndStatus(jobStatus)) {
+                    Thread.sleep(checkFrequencyMinutes * 60000);
+                    jobStatus = batchSystem.getJobStatus(jobId);
+                    listener.getLogger().println("JOB STATUS: " + jobStatus);
+                    batchSystem.processStatus(jobStatus);
+                    // the job phases are named after the job statuses
+                    if (!batchSystem.isEndStatus(jobStatus)
+                            && !jobStatus.equals(timeline.getCurrentPhase())) {
+                        timeline.start(jobStatus);
+                    }
+                    // requeued from outside (e.g. from the page of the
+                    // cloud), the output of the new run starts from the
+                    // beginning
+                    if (batchSystem.isPendingStatus(jobStatus) && offset > 0) {
+                        offset = 0;
+                        journal.recordOffset(jobFileName, offset);
+                    }
+                    if (batchSystem.isPendingStatus(jobStatus)) {
+                        long now = System.currentTimeMillis();
+                        long slaMilliseconds = cloud == null ? 0
+                                : cloud.getPendingSlaMinutes() * 60000L;
+                        if (slaMilliseconds > 0 && !waitRecorded && !packed
+                                && now - queuedAt >= slaMilliseconds
+                                && now - slaCheckedAt >= slaMilliseconds) {
+                            slaCheckedAt = now;
+                            String newQueue = switchQueue(batchSystem, cloud,
+                                    listener, timeline, jobId, queueType,
+                                    now - queuedAt, leftQueues);
+                            if (newQueue != null) {
+                                // the job would have waited even longer in
+                                // the queue it left
+                                cloud.getQueueWaitStatistics().recordCensored(
+                                        queueType, now - queuedAt);
+                                leftQueues.add(queueType);
+                                queueType = newQueue;
+                                queuedAt = now;
+                            }
+                        }
+                        if (!localRun && !waitRecorded && !packed
+                                && shouldRunLocally(build, cloud, listener,
+                                        queueType, System.currentTimeMillis()
+                                        - submittedAt)) {
+                            startLocalRun(batchSystem, listener, jobFileName);
+                            localRun = true;
+                        }
+                    } else if (!waitRecorded && cloud != null) {
+                        cloud.getQueueWaitStatistics().record(queueType,
+                                System.currentTimeMillis() - queuedAt);
+                        waitRecorded = true;
+                    }
+                    if (localRun && !batchSystem.isEndStatus(jobStatus)) {
+                        localExitCode = getLocalExitCode(batchSystem,
+                                jobFileName);
+                        if (localExitCode != null) {
+                            listener.getLogger().println("The local run "
+                                    + "ended first, killing job " + jobId
+                                    + ".");
+                            batchSystem.killJob(jobId);
+                            if (!waitRecorded && cloud != null) {
+                                // the job would have waited even longer
+                                cloud.getQueueWaitStatistics().recordCensored(
+                                        queueType, System.currentTimeMillis()
+                                        - queuedAt);
+                                waitRecorded = true;
+                            }
+                            // the killed job mustn't write into the working
+                            // directory while its files are downloaded
+                            waitForKilledJob(batchSystem, listener, jobId,
+                                    jobFileName);
+                            // the status the job would have ended with
+                            jobStatus = localExitCode == 0 ? "DONE" : "EXIT";
+                            break;
+                        }
+                    }
+                    // a pack is requeued by none of its members, the others
+                    // would lose their results
+                    if (!packed && batchSystem.jobExitedWithErrors(jobStatus)
+                            && requeueIfRetryable(batchSystem, cloud, listener,
+                                    jobId, requeues)) {
+                        requeues++;
+                        jobStatus = "";
+                        // the output of the new run starts from the beginning
+                        offset = 0;
+                        journal.recordOffset(jobFileName, offset);
+                        continue;
+                    }
+                    // a pack runs the jobs of other builds, it's not acted
+                    // upon for one of them
+                    if (stallDetector != null && !packed) {
+                        if (!batchSystem.isRunningStatus(jobStatus)
+                                || batchSystem.isUnhealthy()) {
+                            // a pending or suspended job isn't stalled, and
+                            // nothing is known while LSF doesn't answer
+                            stallDetector.reset();
+                        } else if (stallDetector.update(
+                                batchSystem.getCpuSeconds(jobId), offset)
+                                && handleStall(batchSystem, cloud, listener,
+                                        stallDetector, jobId, requeues)) {
+                            requeues++;
+                            jobStatus = "";
+                            // the output of the new run starts from the
+                            // beginning
+                            offset = 0;
+                            journal.recordOffset(jobFileName, offset);
+                            stallDetector.restart();
+                            continue;
+                        }
+                    }
+                    // the output of a packed job is printed once it ends
+                    if (!batchSystem.isRunningStatus(jobStatus) || packed) {
+                        continue;
+                    }
+                    batchSystem.createJobProgressFile(jobId, PROGRESS_FILE);
+                    // counts the lines in the result file
+                    // (for tracking of job progress)
+                    BufferedReader fileReader = new BufferedReader(
+                            new StringReader(batchSystem.runCommandForOutput(
+                                    "wc -l " + PROGRESS_FILE)));
+                    String first_word = fileReader.readLine();
+                    // checks if command didn't fail and the result file exists
+                    if (first_word == null) {
+                        continue;
+                    }
+                    first_word = first_word.split(" ")[0];
+                    if (first_word.equals("wc:")) {
+                        continue;
+                    }
+                    int numberOfLines = Integer.parseInt(first_word);
+                    batchSystem.createFormattedRunningJobOutputFile(
+                            PROGRESS_FILE, offset, numberOfLines);
+                    String output = batchSystem.readCommunicationFile();
+                    if (!output.isEmpty()) {
+                        printJobOutput(listener, output);
+                        jobOutput.append(output);
+                    }
+                    if (offset < numberOfLines) {
+                        offset = numberOfLines;
+                        journal.recordOffset(jobFileName, offset);
+                    }
+                }
+                timeline.start(BuildTimeline.OUTPUT_COPY);
+                if (localExitCode != null) {
+                    harvest = harvestLocalRun(batchSystem, jobStatus,
+                            jobFileName, localExitCode);
+                } else {
+                    harvest = packed ? harvestPacked(batchSystem, jobStatus,
+                            jobFileName) : batchSystem.harvest(jobId, offset);
                 }
-                int numberOfLines = Integer.parseInt(first_word);
-                batchSystem.createFormattedRunningJobOutputFile(
-                        PROGRESS_FILE, offset, numberOfLines);
-                copyFileToMaster.perform(build, launcher, fakeListener);
-                String output = FileUtils.readFileToString(
-                        new File(masterWorkingDirectory + COMMUNICATION_FILE));
-                if (!output.isEmpty()) {
-                    printJobOutput(listener, output);
+                printJobOutput(listener, harvest.getOutput());
+                jobOutput.append(harvest.getOutput());
+                timeline.start(BuildTimeline.DOWNLOAD);
+                downloadFiles(build, launcher, listener);
+                if (resultCache != null
+                        && isSuccessful(batchSystem, jobStatus, harvest)) {
+                    resultCache.store(cacheKey, jobOutput.toString(),
+                            getDownloadDirectory(build),
+                            getFilesToDownloadList());
                 }
-                if (offset < numberOfLines) {
-                    offset = numberOfLines;
+            } catch (InterruptedException e) {
+                if (packed) {
+                    cancelPackedJob(batchSystem, listener, jobFileName);
+                    jobStatus = "ABORTED";
+                } else if (isShuttingDown()) {
+                    detached = true;
+                    listener.getLogger().println("Jenkins is shutting down, "
+                            + "job " + jobId + " is left running and will be "
+                            + "reattached to after the restart.");
+                    throw e;
+                } else {
+                    batchSystem.killJob(jobId);
+                    if (!waitRecorded && cloud != null
+                            && batchSystem.isPendingStatus(jobStatus)) {
+                        // the job would have waited even longer
+                        cloud.getQueueWaitStatistics().recordCensored(
+                                queueType,
+                                System.currentTimeMillis() - queuedAt);
+                    }
+                    jobStatus = "ABORTED";
+                }
+            } finally {
+                if (!detached) {
+                    if (localRun && localExitCode == null) {
+                        stopLocalRun(batchSystem, listener, jobFileName);
+                    }
+                    // the job can't be reattached to once it has ended,
+                    // otherwise it stays in the journal (e.g. the slave was
+                    // lost)
+                    if (batchSystem.isEndStatus(jobStatus)
+                            || jobStatus.equals("ABORTED")) {
+                        journal.recordCompletion(jobFileName);
+                    }
+                    if (harvest != null) {
+                        printHarvest(listener, batchSystem, jobStatus,
+                                harvest);
+                    }
+                    timeline.start(BuildTimeline.CLEAN_UP);
+                    // the files to download later are only there if the
+                    // job ended
+                    cleanUpFiles(build, batchSystem, jobFileName, jobId,
+                            harvest != null);
+                    if (speculativeJob != null) {
+                        deleteStagingDirectory(speculativeJob);
+                    }
                 }
             }
-            batchSystem.createFinishedJobOutputFile(jobId, offset);
-            copyFileToMaster.perform(build, launcher, fakeListener);
-            String output = FileUtils.readFileToString(
-                    new File(masterWorkingDirectory + COMMUNICATION_FILE));
-            printJobOutput(listener, output);
-            downloadFiles(build, launcher, listener);
-        } catch (InterruptedException e) {
-            batchSystem.killJob(jobId);
-            jobStatus = "ABORTED";
+            return isSuccessful(batchSystem, jobStatus, harvest);
         } finally {
-            if (batchSystem.jobExitedWithErrors(jobStatus)) {
-                listener.getLogger().println();
-                batchSystem.printErrorLog();
-                batchSystem.printExitCode(jobId);
+            timeline.end();
+            if (commandSession != null) {
+                commandSession.close();
+            }
+        }
+    }
+
+    /**
+     * @param build
+     * @return the timeline of the build (with the provisioning of the slave
+     * if the build waited for it)
+     */
+    protected BuildTimeline getTimeline(AbstractBuild<?, ?> build) {
+        BuildTimeline timeline = build.getAction(BuildTimeline.class);
+        if (timeline != null) {
+            // an earlier LSF build step of the same build
+            return timeline;
+        }
+        timeline = new BuildTimeline();
+        if (build.getBuiltOn() instanceof BatchSlave) {
+            long[] provisioning = ((BatchSlave) build.getBuiltOn())
+                    .claimProvisioningTime();
+            if (provisioning != null) {
+                timeline.add(BuildTimeline.PROVISIONING, provisioning[0],
+                        provisioning[1]);
+            }
+        }
+        build.addAction(timeline);
+        return timeline;
+    }
+
+    @Override
+    public Collection<? extends Action> getProjectActions(
+            AbstractProject<?, ?> project) {
+        return Collections.singletonList(new BuildTimelineTrend(project));
+    }
+
+    /**
+     * @param project
+     * @return the directory in master in which the files of the project's
+     * jobs are prepared
+     */
+    protected static String getMasterWorkingDirectory(
+            AbstractProject<?, ?> project) {
+        return Jenkins.getInstance().root.getAbsolutePath() + "/userContent/"
+                + project.getName() + "/";
+    }
+
+    /**
+     * stages and submits the job of a build that is still in the queue, in
+     * the directory of the given speculative job (the fields of this build
+     * step belong to its running builds, so the job is staged by a copy)
+     *
+     * @param project
+     * @param cloud the cloud whose shared file system holds the directory
+     * @param batchSystem the batch system which runs its commands in the
+     * directory
+     * @param speculativeJob
+     * @return the id of the submitted job
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected String submitWhileQueued(AbstractProject<?, ?> project,
+            BatchCloud cloud, BatchSystem batchSystem,
+            SpeculativeJob speculativeJob)
+            throws IOException, InterruptedException {
+        // the working directories of the build step belong to its builds,
+        // the job is staged in a directory of its own
+        String directory = speculativeJob.getDirectory();
+        SharedFileSystem shared = cloud.getSharedFileSystem();
+        // the files are written straight to the shared directory, so no
+        // build is needed to copy them
+        List<String> sentFiles = new ArrayList<String>();
+        for (File fileToSend
+                : getInputFiles(getMasterWorkingDirectory(project))) {
+            sentFiles.add(fileToSend.getName());
+            Files.copy(fileToSend.toPath(), shared.toMaster(directory + "/"
+                    + fileToSend.getName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        String jobFileName = speculativeJob.getJobFileName();
+        File jobFile = shared.toMaster(directory + "/" + jobFileName);
+        writeJobScript(jobFile, sentFiles, jobFileName, cloud, batchSystem,
+                directory);
+        if (!jobFile.setReadable(true, false)
+                || !jobFile.setExecutable(true, false)) {
+            throw new IOException("Failed to make " + jobFile
+                    + " executable");
+        }
+        batchSystem.setResourceRequirements(getResourceRequirements(cloud));
+        return batchSystem.submitJob(jobFileName, sendEmail,
+                cloud.getQueueType());
+    }
+
+    /**
+     * @param project
+     * @return what tells this build step of the project apart (its position
+     * among the steps and its job script) or null if it isn't in the project
+     */
+    protected String getStepKey(AbstractProject<?, ?> project) {
+        if (!(project instanceof Project)) {
+            return null;
+        }
+        int index = ((Project<?, ?>) project).getBuilders().indexOf(this);
+        return index < 0 ? null : index + ":" + Util.getDigestOf(job);
+    }
+
+    /**
+     * takes over the job that was submitted for the build while it was
+     * queued
+     *
+     * @param build
+     * @param listener
+     * @param cloud
+     * @return the adopted job or null if the build submits its own job
+     * @throws InterruptedException
+     */
+    protected SpeculativeJob claimSpeculativeJob(AbstractBuild<?, ?> build,
+            BuildListener listener, BatchCloud cloud)
+            throws InterruptedException {
+        SpeculativeJob speculativeJob = build.getAction(SpeculativeJob.class);
+        // the job runs the script of the step that submitted it
+        if (!submitWhileQueued || speculativeJob == null
+                || speculativeJob.getStepKey() == null
+                || !speculativeJob.getStepKey().equals(
+                        getStepKey(build.getProject()))
+                || cloud == null
+                || cloud.getSharedFileSystem() == null
+                || !cloud.name.equals(speculativeJob.getCloudName())) {
+            return null;
+        }
+        String jobId = speculativeJob.claim(
+                QUEUED_SUBMISSION_MAX_WAIT_MILLISECONDS);
+        if (jobId == null) {
+            listener.getLogger().println("The job submitted while the build "
+                    + "was queued is not available"
+                    + (speculativeJob.getFailure() != null ? " ("
+                            + speculativeJob.getFailure() + ")" : "")
+                    + ", submitting the job again.");
+            return null;
+        }
+        listener.getLogger().println("Adopting job " + jobId + " which was "
+                + "submitted while the build was queued.");
+        return speculativeJob;
+    }
+
+    /**
+     * deletes the directory in which an adopted job was staged
+     *
+     * @param speculativeJob
+     */
+    protected void deleteStagingDirectory(SpeculativeJob speculativeJob) {
+        final File directory
+                = speculativeJob.getMasterDirectory(sharedFileSystem);
+        if (directory == null) {
+            return;
+        }
+        PostProcessingPipeline.submit(directory.getName(),
+                Collections.<PostProcessingPipeline.Step>singletonList(
+                        new PostProcessingPipeline.Step(
+                                "delete the staging directory") {
+                            @Override
+                            public void run() {
+                                FileUtils.deleteQuietly(directory);
+                            }
+                        }));
+    }
+
+    /**
+     * starts the shell in which the commands of the build are run
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @return the started session or null if every command has to be run in
+     * a new shell
+     * @throws InterruptedException
+     */
+    protected CommandSession startCommandSession(AbstractBuild<?, ?> build,
+            Launcher launcher, BuildListener listener)
+            throws InterruptedException {
+        try {
+            return CommandSession.start(build, launcher, listener);
+        } catch (IOException e) {
+            listener.getLogger().println("Failed to start the command "
+                    + "session, running every command in a new shell: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * finds the job of an earlier build of this project that was interrupted
+     * by a restart of Jenkins and is still known to the batch system, if the
+     * build was scheduled to reattach to it (another build may have other
+     * parameters or inputs)
+     *
+     * @param build
+     * @param listener
+     * @param batchSystem
+     * @param journal
+     * @param scriptHash digest of the job script and its files
+     * @return the journal entry of the job or null if there is none
+     * @throws InterruptedException
+     * @throws IOException if the batch system couldn't tell whether it still
+     * knows the job (another build is scheduled to reattach to it later)
+     */
+    protected JobJournal.Entry findJobToReattach(AbstractBuild<?, ?> build,
+            BuildListener listener, BatchSystem batchSystem,
+            JobJournal journal, String scriptHash)
+            throws InterruptedException, IOException {
+        JobJournal.Entry orphan = null;
+        for (Cause cause : build.getCauses()) {
+            if (cause instanceof JobJournal.ReattachCause) {
+                String key = ((JobJournal.ReattachCause) cause).getKey();
+                orphan = key == null ? null : journal.findOrphan(key,
+                        build.getProject().getFullName(),
+                        slaveWorkingDirectory, scriptHash);
+                if (orphan != null) {
+                    break;
+                }
             }
-            batchSystem.cleanUpFiles(jobId);
-            cleanUpFiles(build, launcher, fakeListener, jobFileName, jobId);
         }
-        return batchSystem.jobCompletedSuccessfully(jobStatus);
+        if (orphan == null) {
+            return null;
+        }
+        try {
+            batchSystem.getJobStatus(orphan.getJobId());
+        } catch (BatchSystem.JobNotFoundException e) {
+            // the batch system has already forgotten about the job
+            journal.recordCompletion(orphan.getKey());
+            return null;
+        } catch (IOException e) {
+            // the job may still be running, submitting it again would run
+            // it twice
+            journal.scheduleReattach(orphan, REATTACH_RETRY_SECONDS);
+            throw new IOException("Failed to find out whether job "
+                    + orphan.getJobId() + " of build #"
+                    + orphan.getBuildNumber() + " is still known to the "
+                    + "batch system, another build will try to reattach to "
+                    + "it in " + REATTACH_RETRY_SECONDS + " seconds", e);
+        }
+        listener.getLogger().println("Reattaching to job " + orphan.getJobId()
+                + " submitted by build #" + orphan.getBuildNumber() + ".");
+        journal.recordAdoption(orphan.getKey(), build);
+        return orphan;
+    }
+
+    /**
+     * puts the job back to the queue if it failed because of the batch system
+     * (e.g. it was preempted or its host failed) and the cloud allows more
+     * requeues
+     *
+     * @param batchSystem
+     * @param cloud
+     * @param listener
+     * @param jobId
+     * @param requeues how many times the job was already requeued
+     * @return true if the job was requeued
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected boolean requeueIfRetryable(BatchSystem batchSystem,
+            BatchCloud cloud, BuildListener listener, String jobId,
+            int requeues) throws InterruptedException, IOException {
+        if (cloud == null || requeues >= cloud.getMaxRequeues()) {
+            return false;
+        }
+        String exitReason = batchSystem.getExitReason(jobId);
+        if (!batchSystem.isRetryableExitReason(exitReason)) {
+            return false;
+        }
+        // exponential backoff
+        long backoffSeconds = (long) cloud.getRequeueBackoffSeconds()
+                << requeues;
+        listener.getLogger().println("Job ended because of " + exitReason
+                + ", requeueing it in " + backoffSeconds + " seconds (attempt "
+                + (requeues + 1) + " of " + cloud.getMaxRequeues() + ").");
+        Thread.sleep(backoffSeconds * 1000);
+        batchSystem.requeueJob(jobId);
+        return true;
+    }
+
+    /**
+     * acts upon a running job that made no progress for the stall window as
+     * configured by the stall action
+     *
+     * @param batchSystem
+     * @param cloud
+     * @param listener
+     * @param stallDetector
+     * @param jobId
+     * @param requeues how many times the job was already put back to the
+     * queue
+     * @return true if the job was put back to the queue
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected boolean handleStall(BatchSystem batchSystem, BatchCloud cloud,
+            BuildListener listener, StallDetector stallDetector, String jobId,
+            int requeues) throws InterruptedException, IOException {
+        listener.getLogger().println("Job " + jobId + " has stalled: no new "
+                + "output and no CPU time used for "
+                + stallDetector.getStallTimeString() + ".");
+        // the next warning comes after another window without progress
+        stallDetector.reset();
+        if (getStallAction().equals(STALL_WARN)) {
+            return false;
+        }
+        listener.getLogger().println("------------------------------------"
+                + "-----------STALLED JOB DIAGNOSTICS START-------------------"
+                + "-----------------------");
+        listener.getLogger().println(batchSystem.getDiagnostics(jobId));
+        listener.getLogger().println("------------------------------------"
+                + "-----------STALLED JOB DIAGNOSTICS END---------------------"
+                + "-----------------------");
+        if (!getStallAction().equals(STALL_REQUEUE)) {
+            return false;
+        }
+        if (cloud == null || requeues >= cloud.getMaxRequeues()) {
+            listener.getLogger().println("Killing the stalled job, it can't "
+                    + "be requeued any more.");
+            batchSystem.killJob(jobId);
+            return false;
+        }
+        listener.getLogger().println("Requeueing the stalled job (attempt "
+                + (requeues + 1) + " of " + cloud.getMaxRequeues() + ").");
+        batchSystem.requeueJob(jobId);
+        return true;
+    }
+
+    /**
+     * @return true if the build is interrupted because Jenkins is going down
+     * rather than because it was aborted
+     */
+    private static boolean isShuttingDown() {
+        // quieting down doesn't tell a restart from an abort, and a restart
+        // needn't quiet down first
+        Executor executor = Executor.currentExecutor();
+        return JobJournal.isShuttingDown()
+                && (executor == null
+                || executor.getCausesOfInterruption().isEmpty());
     }
 
     /**
@@ -264,86 +1119,171 @@ public class BatchBuilder extends Builder {
      * @return queue type from the cloud
      */
     protected String getQueueType(AbstractBuild<?, ?> build) {
-        // finds the queue type by searching through the clouds 
+        BatchCloud cloud = getCloud(build);
+        if (cloud != null) {
+            return cloud.getQueueType();
+        }
+        return null;
+    }
+
+    /**
+     * @param build
+     * @return the cloud that provisions slaves for the build
+     */
+    protected BatchCloud getCloud(AbstractBuild<?, ?> build) {
+        // finds the cloud by searching through the clouds 
         // with the associated label
         for (Cloud cloud : Jenkins.getInstance().clouds) {
             if (cloud instanceof BatchCloud && cloud.canProvision(
                     build.getProject().getAssignedLabel())) {
-                return ((BatchCloud) cloud).getQueueType();
+                return (BatchCloud) cloud;
             }
         }
         return null;
     }
 
+    /**
+     * @param cloud
+     * @param listener
+     * @return the file system through which master can access the slave
+     * working directory or null if the files have to be copied
+     */
+    protected SharedFileSystem getSharedFileSystem(BatchCloud cloud,
+            BuildListener listener) {
+        if (cloud == null || cloud.getSharedFileSystem() == null) {
+            return null;
+        }
+        SharedFileSystem shared = cloud.getSharedFileSystem();
+        if (!shared.isShared(slaveWorkingDirectory)) {
+            listener.getLogger().println("The slave working directory "
+                    + slaveWorkingDirectory + " is not accessible through "
+                    + "the shared path mapping, copying the files instead.");
+            return null;
+        }
+        return shared;
+    }
+
+    /**
+     * @return the files in master that are sent to the batch system
+     */
+    protected List<File> getInputFiles() {
+        return getInputFiles(masterWorkingDirectory);
+    }
+
+    /**
+     * @param masterDirectory the directory of the uploaded files
+     * @return the files in master that are sent to the batch system
+     */
+    protected List<File> getInputFiles(String masterDirectory) {
+        List<File> inputFiles = new ArrayList<File>();
+        for (String file : filesToSend.split(",")) {
+            if (!file.trim().isEmpty()) {
+                inputFiles.add(new File(file.trim()));
+            }
+        }
+        for (String file : uploadedFiles.split(",")) {
+            if (!file.trim().isEmpty()) {
+                inputFiles.add(new File(masterDirectory + file.trim()));
+            }
+        }
+        return inputFiles;
+    }
+
+    /**
+     * @param build
+     * @param listener
+     * @return true if the build asks to bypass the result cache
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected boolean isCacheMissForced(AbstractBuild<?, ?> build,
+            BuildListener listener) throws IOException, InterruptedException {
+        return Boolean.parseBoolean(build.getEnvironment(listener)
+                .get(FORCE_CACHE_MISS_VARIABLE));
+    }
+
+    /**
+     * @param build
+     * @return the directory (in master) to which the selected files are
+     * downloaded
+     */
+    protected File getDownloadDirectory(AbstractBuild<?, ?> build) {
+        // default destination is the build directory
+        if (downloadDestination == null || downloadDestination.isEmpty()) {
+            return build.getRootDir();
+        }
+        return new File(downloadDestination);
+    }
+
     /**
      * @param build
-     * @param launcher
      * @param listener
-     * @return current working directory in the slave machine
+     * @param batchSystem
+     * @param queueType
+     * @return current working directory in the slave machine (from the facts
+     * of the slave if they are known, otherwise it is asked)
      * @throws InterruptedException
      * @throws IOException
      */
     protected String getSlaveWorkingDirectory(AbstractBuild<?, ?> build,
-            Launcher launcher, BuildListener listener)
+            BuildListener listener, BatchSystem batchSystem, String queueType)
             throws InterruptedException, IOException {
-        Shell shell = new Shell("pwd > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, listener);
-        CopyToMasterNotifier copyFileToMaster
-                = new CopyToMasterNotifier(COMMUNICATION_FILE, "", true,
-                        masterWorkingDirectory, true);
-        copyFileToMaster.perform(build, launcher, listener);
+        NodeFacts facts = build.getBuiltOn() instanceof BatchSlave
+                ? ((BatchSlave) build.getBuiltOn()).getNodeFacts() : null;
+        if (facts != null) {
+            listener.getLogger().println("LSF cluster "
+                    + facts.getClusterName() + " (" + facts.getLsfVersion()
+                    + ").");
+            if (queueType != null && !facts.hasQueue(queueType)) {
+                listener.getLogger().println("Queue " + queueType
+                        + " is not among the queues of the cluster: "
+                        + facts.getQueues() + ".");
+            }
+            String directory = build.getWorkspace() == null ? null
+                    : facts.toAbsolute(build.getWorkspace().getRemote());
+            if (directory != null) {
+                return directory;
+            }
+        }
         BufferedReader br = new BufferedReader(
-                new FileReader(masterWorkingDirectory + COMMUNICATION_FILE));
+                new StringReader(batchSystem.runCommandForOutput("pwd")));
         return br.readLine();
     }
 
     /**
-     * sends the selected files to the slave machine
+     * sends the selected files to the slave machine, straight from where
+     * they are in master (without copying them to the master working
+     * directory first)
      *
      * @param build
      * @param launcher
      * @param listener
-     * @return shell commands for sending files to batch system
+     * @return names of the sent files (in the slave working directory)
      * @throws IOException
      * @throws InterruptedException
      */
-    protected String sendFiles(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener)
+    protected List<String> sendFiles(AbstractBuild<?, ?> build,
+            Launcher launcher, BuildListener listener)
             throws IOException, InterruptedException {
-        String sendFilesShellCommands = "";
-        String filesWithoutPaths = "";
-        if (!filesToSend.isEmpty()) {
-            for (String file : filesToSend.split(",")) {
-                File fileToSend = new File(file.trim());
-                sendFilesShellCommands = sendFilesShellCommands + "cp \""
-                        + slaveWorkingDirectory + "/"
-                        + fileToSend.getName() + "\" .\n";
-                Files.copy(fileToSend.toPath(),
-                        new File(masterWorkingDirectory
-                                + fileToSend.getName()).toPath(),
+        List<String> sentFiles = new ArrayList<String>();
+        for (File fileToSend : getInputFiles()) {
+            sentFiles.add(fileToSend.getName());
+            if (sharedFileSystem != null) {
+                // written straight to the slave working directory
+                Files.copy(fileToSend.toPath(), getSharedFile(
+                        fileToSend.getName()).toPath(),
                         StandardCopyOption.REPLACE_EXISTING);
-                filesWithoutPaths = build.getProject().getName() + "/"
-                        + fileToSend.getName() + ","
-                        + filesWithoutPaths;
+                continue;
             }
-        }
-        if (!uploadedFiles.isEmpty()) {
-            for (String file : uploadedFiles.split(",")) {
-                sendFilesShellCommands = sendFilesShellCommands + "cp \""
-                        + slaveWorkingDirectory + "/" + file + "\" .\n";
-                filesWithoutPaths = build.getProject().getName() + "/" + file
-                        + "," + filesWithoutPaths;
+            if (build.getWorkspace() == null) {
+                throw new IOException("The workspace of " + build
+                        + " is not available");
             }
+            // streamed through the channel of the slave
+            new FilePath(fileToSend).copyTo(
+                    build.getWorkspace().child(fileToSend.getName()));
         }
-        if (!filesToSend.isEmpty() || !uploadedFiles.isEmpty()) {
-            CopyToSlaveBuildWrapper copyToSlave
-                    = new CopyToSlaveBuildWrapper(filesWithoutPaths,
-                            "", true, false,
-                            CopyToSlaveBuildWrapper.RELATIVE_TO_HOME,
-                            false);
-            copyToSlave.setUp(build, launcher, listener);
-        }
-        return sendFilesShellCommands;
+        return sentFiles;
     }
 
     /**
@@ -360,20 +1300,61 @@ public class BatchBuilder extends Builder {
         if (!filesToDownload.isEmpty()) {
             listener.getLogger().println();
             listener.getLogger().println("Downloading the selected files:");
-            boolean is_default = false;
-            // default destination is the build directory
-            if (downloadDestination.isEmpty()) {
-                downloadDestination = build.getRootDir().getAbsolutePath();
-                is_default = true;
+            if (sharedFileSystem != null) {
+                // copied locally from the shared file system
+                for (String file : getFilesToDownloadList()) {
+                    File destination
+                            = new File(getDownloadDirectory(build), file);
+                    destination.getParentFile().mkdirs();
+                    Files.copy(getSharedFile(file).toPath(),
+                            destination.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    listener.getLogger().println(file);
+                }
+                return;
+            }
+            if (deltaDownload && build.getWorkspace() != null) {
+                downloadDeltas(build, listener);
+                return;
             }
             CopyToMasterNotifier copyFilesToMaster
-                    = new CopyToMasterNotifier(filesToDownload, "",
-                            true, downloadDestination, true);
+                    = new CopyToMasterNotifier(filesToDownload, "", true,
+                            getDownloadDirectory(build).getAbsolutePath(),
+                            true);
             copyFilesToMaster.perform(build, launcher, listener);
-            // resets the download destination
-            if (is_default) {
-                downloadDestination = "";
+        }
+    }
+
+    /**
+     * downloads the selected files by sending only the parts that differ
+     * from the copies downloaded by the previous build
+     *
+     * @param build
+     * @param listener
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected void downloadDeltas(AbstractBuild<?, ?> build,
+            BuildListener listener) throws InterruptedException, IOException {
+        FilePath directory = new FilePath(build.getWorkspace().getChannel(),
+                slaveWorkingDirectory);
+        File downloadDirectory = getDownloadDirectory(build);
+        AbstractBuild<?, ?> previous = build.getPreviousCompletedBuild();
+        for (String file : getFilesToDownloadList()) {
+            File destination = new File(downloadDirectory, file);
+            destination.getParentFile().mkdirs();
+            // a fixed destination still holds the previous copy
+            File basis = destination;
+            if (!basis.isFile() && previous != null) {
+                basis = new File(getDownloadDirectory(previous), file);
             }
+            DeltaDownload.Statistics statistics = DeltaDownload.download(
+                    directory.child(file), basis, destination);
+            listener.getLogger().println(file + " (" + statistics
+                    .getFileBytes() + " bytes, sent " + statistics
+                    .getSentBytes() + ", reused " + statistics
+                    .getReusedBytes() + ")");
+            getTimeline(build).addTransfer(file, statistics);
         }
     }
 
@@ -383,28 +1364,26 @@ public class BatchBuilder extends Builder {
      * @param build
      * @param launcher
      * @param listener
-     * @param sendFilesShellCommands
+     * @param sentFiles names of the files sent to the slave working directory
      * @param jobFileName
+     * @param cloud the cloud that decides how the files are staged
+     * @param batchSystem
      * @throws IOException
      * @throws InterruptedException
      */
     protected void sendJobToSlave(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener, String sendFilesShellCommands,
-            String jobFileName) throws IOException, InterruptedException {
-        // stores the job in a script file
-        PrintWriter writer
-                = new PrintWriter(masterWorkingDirectory
-                        + jobFileName, "UTF-8");
-        writer.print(sendFilesShellCommands + job + "\n");
-
-        // inputs the files to download commands to the job
-        if (!filesToDownload.isEmpty()) {
-            for (String file : filesToDownload.split(",")) {
-                writer.print("cp \"" + file.trim() + "\" \""
-                        + slaveWorkingDirectory + "/\" > /dev/null\n");
-            }
+            BuildListener listener, List<String> sentFiles,
+            String jobFileName, BatchCloud cloud, BatchSystem batchSystem)
+            throws IOException, InterruptedException {
+        // stores the job in a script file (straight in the slave working
+        // directory if it is shared)
+        File jobFile = sharedFileSystem != null ? getSharedFile(jobFileName)
+                : new File(masterWorkingDirectory + jobFileName);
+        writeJobScript(jobFile, sentFiles, jobFileName, cloud, batchSystem,
+                slaveWorkingDirectory);
+        if (sharedFileSystem != null) {
+            return;
         }
-        writer.close();
         // sends the job file to the slave
         CopyToSlaveBuildWrapper copyToSlave = new CopyToSlaveBuildWrapper(
                 build.getProject().getName() + "/" + jobFileName,
@@ -414,55 +1393,952 @@ public class BatchBuilder extends Builder {
     }
 
     /**
-     * sets the correct permission on the job file
+     * writes the job script file
      *
-     * @param build
-     * @param launcher
+     * @param jobFile
+     * @param sentFiles names of the files sent to the slave working directory
+     * @param jobFileName
+     * @param cloud the cloud that decides how the files are staged
+     * @param batchSystem
+     * @param workingDirectory the slave working directory
+     * @throws IOException
+     */
+    protected void writeJobScript(File jobFile, List<String> sentFiles,
+            String jobFileName, BatchCloud cloud, BatchSystem batchSystem,
+            String workingDirectory) throws IOException {
+        String stagingMode = cloud == null ? BatchCloud.STAGING_SHARED
+                : cloud.getStagingMode();
+        PrintWriter writer = new PrintWriter(jobFile, "UTF-8");
+        if (stagingMode.equals(BatchCloud.STAGING_SHARED)) {
+            for (String file : sentFiles) {
+                writer.print("cp \"" + workingDirectory + "/" + file
+                        + "\" .\n");
+            }
+            writer.print(job + "\n");
+            // inputs the files to download commands to the job
+            for (String file : getJobOutputFiles()) {
+                writer.print("cp \"" + file + "\" \"" + workingDirectory
+                        + "/\" > /dev/null\n");
+            }
+        } else {
+            writer.print(getScratchJob(sentFiles, jobFileName,
+                    stagingMode.equals(BatchCloud.STAGING_TRANSFER),
+                    cloud.getScratchDirectory(), batchSystem,
+                    workingDirectory));
+        }
+        writer.close();
+    }
+
+    /**
+     * wraps the job so that it runs in its own directory on the local disk of
+     * the execution host, which is removed when the job exits
+     *
+     * @param sentFiles names of the files sent to the slave working directory
+     * @param jobFileName
+     * @param useFileTransfer if the files should be copied by the batch
+     * system instead of the job itself
+     * @param scratchDirectory the directory on the execution host
+     * @param batchSystem
+     * @param workingDirectory the slave working directory
+     * @return the wrapped job script
+     */
+    protected String getScratchJob(List<String> sentFiles, String jobFileName,
+            boolean useFileTransfer, String scratchDirectory,
+            BatchSystem batchSystem, String workingDirectory) {
+        StringBuilder script = new StringBuilder();
+        // the files transferred by the batch system next to the job
+        // directory (which doesn't exist before the job starts)
+        StringBuilder transferredInputs = new StringBuilder();
+        StringBuilder stageIn = new StringBuilder();
+        for (String file : sentFiles) {
+            if (useFileTransfer) {
+                String transferred = scratchDirectory + "/" + jobFileName
+                        + "-" + file;
+                batchSystem.stageIn(workingDirectory + "/" + file,
+                        transferred);
+                transferredInputs.append(" \"").append(transferred)
+                        .append("\"");
+                stageIn.append("mv \"").append(transferred).append("\" \"")
+                        .append(file).append("\"\n");
+            } else {
+                stageIn.append("cp \"").append(workingDirectory)
+                        .append("/").append(file).append("\" \"")
+                        .append(file).append("\"\n");
+            }
+        }
+        script.append("LSF_SCRATCH=\"").append(scratchDirectory).append("/")
+                .append(jobFileName).append("\"\n");
+        if (useFileTransfer) {
+            // the transferred outputs stay until the batch system copies
+            // them back after the job, the ones of old jobs are removed
+            // (only the files after a job name, not the job directories)
+            script.append("find \"").append(scratchDirectory)
+                    .append("\" -maxdepth 1 -type f -name '").append(
+                            TRANSFERRED_FILE_PATTERN).append("' -mmin +")
+                    .append(TRANSFERRED_FILE_MAX_AGE_MINUTES)
+                    .append(" -exec rm -f {} + 2>/dev/null\n");
+        }
+        script.append("mkdir -p \"$LSF_SCRATCH\" && cd \"$LSF_SCRATCH\" "
+                + "|| { rm -f").append(transferredInputs)
+                .append("; exit 1; }\n");
+        // runs when the job exits, keeping the exit code of the job
+        StringBuilder onExit = new StringBuilder();
+        for (String file : getJobOutputFiles()) {
+            if (useFileTransfer) {
+                String transferred = scratchDirectory + "/" + jobFileName
+                        + "-" + file.replace('/', '_');
+                batchSystem.stageOut(transferred,
+                        workingDirectory + "/" + file);
+                onExit.append("mv \"").append(file).append("\" \"")
+                        .append(transferred).append("\"; ");
+            } else {
+                String destination = workingDirectory + "/" + file;
+                onExit.append("mkdir -p \"$(dirname \"").append(destination)
+                        .append("\")\" && cp \"").append(file).append("\" \"")
+                        .append(destination).append("\"; ");
+            }
+        }
+        onExit.append("cd / && rm -rf \"$LSF_SCRATCH\"");
+        if (transferredInputs.length() > 0) {
+            // the inputs that weren't moved yet (e.g. the job was killed)
+            onExit.append("; rm -f").append(transferredInputs);
+        }
+        script.append("trap '").append(onExit).append("' EXIT\n");
+        script.append(stageIn);
+        script.append(job).append("\n");
+        return script.toString();
+    }
+
+    /**
+     * @param fileName name of a file in the slave working directory
+     * @return the file as seen from master through the shared file system
+     */
+    protected File getSharedFile(String fileName) {
+        return sharedFileSystem.toMaster(slaveWorkingDirectory + "/"
+                + fileName);
+    }
+
+    /**
+     * @return the files that need to be downloaded after job completion
+     */
+    protected List<String> getFilesToDownloadList() {
+        return splitFileList(filesToDownload);
+    }
+
+    /**
+     * @return the files that are downloaded in the background
+     */
+    protected List<String> getFilesToDownloadLaterList() {
+        return splitFileList(filesToDownloadLater);
+    }
+
+    /**
+     * @return the files that the job copies back to the slave working
+     * directory (the ones downloaded by the build and in the background)
+     */
+    protected List<String> getJobOutputFiles() {
+        List<String> files = getFilesToDownloadList();
+        files.addAll(getFilesToDownloadLaterList());
+        return files;
+    }
+
+    /**
+     * @param fileList file names separated by commas
+     * @return the names which aren't empty
+     */
+    private static List<String> splitFileList(String fileList) {
+        List<String> files = new ArrayList<String>();
+        if (fileList == null) {
+            return files;
+        }
+        for (String file : fileList.split(",")) {
+            if (!file.trim().isEmpty()) {
+                files.add(file.trim());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * sets the correct permission on the job file
+     *
+     * @param batchSystem
      * @param listener
      * @param jobFileName
      * @throws InterruptedException
      */
-    protected void setPermissionOnJobFile(AbstractBuild<?, ?> build,
-            Launcher launcher, BuildListener listener, String jobFileName)
+    protected void setPermissionOnJobFile(BatchSystem batchSystem,
+            BuildListener listener, String jobFileName)
             throws InterruptedException {
-        Shell shell = new Shell("#!/bin/bash +x\n chmod 755 "
-                + jobFileName + " > /dev/null");
-        shell.perform(build, launcher, listener);
+        batchSystem.runCommand("chmod 755 " + jobFileName + " > /dev/null",
+                listener);
+    }
+
+    /**
+     * @param build
+     * @param cloud
+     * @return true if the job may be packed with the jobs of other builds
+     */
+    protected boolean isPackable(AbstractBuild<?, ?> build,
+            BatchCloud cloud) {
+        // with LSF file transfer the files of every job are copied by its
+        // own submission, and a pack has the requirements of the cloud and
+        // sends no email
+        if (!packShortJobs || cloud == null || cloud.getMaxPackSize() <= 1
+                || BatchCloud.STAGING_TRANSFER.equals(cloud.getStagingMode())
+                || hasOwnResourceRequirements() || sendEmail) {
+            return false;
+        }
+        // the members run one after the other, a long job would hold up
+        // the others (unknown for the first build)
+        long runTime = getPreviousRunTime(build);
+        return runTime > 0 && runTime < PACKABLE_RUN_MILLISECONDS;
+    }
+
+    /**
+     * submits the staged job and records the submission in the journal (or
+     * that the staged job is done with, if it couldn't be submitted)
+     *
+     * @param batchSystem
+     * @param journal
+     * @param jobFileName
+     * @param queueType
+     * @return the id of the submitted job
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected String submitJournaled(BatchSystem batchSystem,
+            JobJournal journal, String jobFileName, String queueType)
+            throws IOException, InterruptedException {
+        String jobId = null;
+        try {
+            jobId = batchSystem.submitJob(jobFileName, sendEmail, queueType);
+        } finally {
+            if (jobId == null) {
+                // nothing to reattach to after a restart
+                journal.recordCompletion(jobFileName);
+            }
+        }
+        journal.recordSubmission(jobFileName, jobId);
+        return jobId;
+    }
+
+    /**
+     * @param build
+     * @param cloud
+     * @return true if the job is submitted before its files are staged
+     */
+    protected boolean isStagedWhilePending(AbstractBuild<?, ?> build,
+            BatchCloud cloud) {
+        // with LSF file transfer the files are part of the submission, and
+        // a pack is submitted only when it is full
+        return stageWhilePending && !isPackable(build, cloud)
+                && (cloud == null
+                || !BatchCloud.STAGING_TRANSFER.equals(cloud.getStagingMode()));
     }
 
     /**
-     * cleans up the temporary files in the master and the slave
+     * submits the job gated on a marker file and then stages its files and
+     * creates the marker, so that the staging overlaps the wait of the job
+     * in the queue (if the job is dispatched earlier, LSF puts it back to the
+     * queue)
      *
      * @param build
      * @param launcher
      * @param listener
+     * @param cloud
+     * @param batchSystem
+     * @param timeline
+     * @param journal
+     * @param jobFileName
+     * @param queueType
+     * @param scriptHash
+     * @return the id of the submitted job
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected String submitBeforeStaging(AbstractBuild<?, ?> build,
+            Launcher launcher, BuildListener listener, BatchCloud cloud,
+            BatchSystem batchSystem, BuildTimeline timeline,
+            JobJournal journal, String jobFileName, String queueType,
+            String scriptHash) throws IOException, InterruptedException {
+        String marker = slaveWorkingDirectory + "/" + jobFileName
+                + STAGED_SUFFIX;
+        // a marker left by an earlier build would release the job too soon
+        batchSystem.runCommand("rm -f \"" + marker + "\"", listener);
+        batchSystem.setResourceRequirements(getResourceRequirements(cloud));
+        if (cloud != null) {
+            batchSystem.setJobGroup(cloud.getJobGroups().prepare(
+                    batchSystem, cloud, build.getProject().getFullName()));
+        }
+        journal.recordStaging(jobFileName, build, slaveWorkingDirectory,
+                scriptHash);
+        timeline.start(BuildTimeline.SUBMISSION);
+        batchSystem.setStagingMarker(marker);
+        String jobId;
+        try {
+            jobId = submitJournaled(batchSystem, journal, jobFileName,
+                    queueType);
+        } finally {
+            batchSystem.setStagingMarker(null);
+        }
+        listener.getLogger().println("Job " + jobId + " waits in the queue "
+                + "until its files are staged.");
+        boolean staged = false;
+        try {
+            timeline.start(BuildTimeline.INPUT_STAGING);
+            List<String> sentFiles = sendFiles(build, launcher, listener);
+            timeline.start(BuildTimeline.SCRIPT_TRANSFER);
+            sendJobToSlave(build, launcher, listener, sentFiles, jobFileName,
+                    cloud, batchSystem);
+            timeline.start(BuildTimeline.CHMOD);
+            setPermissionOnJobFile(batchSystem, listener, jobFileName);
+            String reply = batchSystem.runCommandForOutput("touch \""
+                    + marker + "\" && echo " + STAGED_SUFFIX);
+            if (!reply.contains(STAGED_SUFFIX)) {
+                throw new IOException("Failed to create " + marker);
+            }
+            staged = true;
+            listener.getLogger().println("The files of job " + jobId
+                    + " are staged, the job may start.");
+        } finally {
+            if (!staged) {
+                // the job would wait for the marker forever
+                batchSystem.killJob(jobId);
+            }
+        }
+        return jobId;
+    }
+
+    /**
+     * @return true if the job sets resource requirements of its own
+     */
+    protected boolean hasOwnResourceRequirements() {
+        return !new ResourceRequirements(slots, memoryMB, span, affinity,
+                exclusive, hostSelection).isEmpty();
+    }
+
+    /**
+     * submits the job in a pack with the short jobs of other builds
+     *
+     * @param batchSystem
+     * @param cloud
+     * @param listener
+     * @param timeline
      * @param jobFileName
+     * @param queueType
+     * @return the job id of the pack or null if the job should be submitted
+     * on its own
+     * @throws InterruptedException
+     */
+    protected String submitPacked(BatchSystem batchSystem, BatchCloud cloud,
+            BuildListener listener, BuildTimeline timeline,
+            String jobFileName, String queueType)
+            throws InterruptedException {
+        timeline.start(BuildTimeline.PACK_WAIT);
+        JobPacker.Pack pack = cloud.getJobPacker().join(queueType,
+                slaveWorkingDirectory, jobFileName, cloud.getMaxPackSize());
+        if (!pack.isLeader(jobFileName)) {
+            try {
+                // the leader may have been lost, it is waited for no longer
+                // than it waits for the pack to fill plus the submission
+                String jobId = pack.awaitJobId(
+                        cloud.getMaxPackWaitSeconds() * 1000L
+                        + PACK_SUBMISSION_MAX_WAIT_MILLISECONDS);
+                if (jobId == null) {
+                    if (!pack.leave(jobFileName)) {
+                        // the pack may still be submitted with the job,
+                        // which mustn't run twice
+                        cancelPackedJob(batchSystem, listener, jobFileName);
+                    }
+                    listener.getLogger().println("The pack of jobs wasn't "
+                            + "submitted in time, submitting the job on its "
+                            + "own.");
+                    return null;
+                }
+                listener.getLogger().println("Job packed with the jobs of "
+                        + "other builds into job " + jobId + ".");
+                return jobId;
+            } catch (IOException e) {
+                listener.getLogger().println(e.getMessage()
+                        + ", submitting the job on its own.");
+                return null;
+            } catch (InterruptedException e) {
+                if (!pack.leave(jobFileName)) {
+                    // the pack is submitted with the job
+                    cancelPackedJob(batchSystem, listener, jobFileName);
+                }
+                throw e;
+            }
+        }
+        // why the pack wasn't submitted, told to the members unless the job
+        // id was handed over to them
+        String failure = "The build which submits the pack of jobs failed";
+        try {
+            List<String[]> members = pack.close(
+                    cloud.getMaxPackWaitSeconds() * 1000L);
+            if (members.size() == 1) {
+                // no other job arrived in time
+                return null;
+            }
+            String packFileName = jobFileName + PACK_SUFFIX;
+            batchSystem.runCommand(getPackScript(packFileName, members),
+                    listener);
+            timeline.start(BuildTimeline.SUBMISSION);
+            // the pack holds the jobs of different projects, it counts
+            // towards the limit of the cloud only
+            String projectGroup = batchSystem.getJobGroup();
+            batchSystem.setJobGroup(cloud.getJobGroups().getCloudGroup());
+            String jobId;
+            try {
+                jobId = batchSystem.submitJob(packFileName, false, queueType);
+            } finally {
+                batchSystem.setJobGroup(projectGroup);
+            }
+            pack.submitted(jobId);
+            failure = null;
+            listener.getLogger().println("Submitted a pack of "
+                    + members.size() + " jobs of different builds.");
+            return jobId;
+        } catch (IOException e) {
+            failure = "Failed to submit the pack of jobs";
+            listener.getLogger().println("Failed to submit the pack of jobs, "
+                    + "submitting the job on its own: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            failure = "The build which submits the pack of jobs was aborted";
+            throw e;
+        } finally {
+            // also on unexpected errors, the members would wait in vain
+            if (failure != null) {
+                pack.failed(failure);
+            }
+        }
+    }
+
+    /**
+     * @param packFileName
+     * @param members the directory and the job script name of every job in
+     * the pack
+     * @return the command that writes the script which runs the jobs of the
+     * pack one after the other (every job in its own directory, with its
+     * output and exit code written next to its script)
+     */
+    protected String getPackScript(String packFileName,
+            List<String[]> members) {
+        StringBuilder script = new StringBuilder();
+        script.append("cat > ").append(packFileName)
+                .append(" <<'LSF_PACK_END'\n#!/bin/bash\n");
+        for (String[] member : members) {
+            String name = member[1];
+            String cancel = name + PACKED_CANCEL_SUFFIX;
+            // every job runs in its own process group, which is killed when
+            // its build is aborted
+            script.append("( cd '").append(member[0]).append("' && if [ ! -e ")
+                    .append(cancel).append(" ]; then setsid ./").append(name)
+                    .append(" > ").append(name).append(PACKED_OUTPUT_SUFFIX)
+                    .append(" 2>&1 & pid=$!; while kill -0 $pid 2>/dev/null;"
+                            + " do if [ -e ").append(cancel)
+                    .append(" ]; then kill -TERM -- -$pid 2>/dev/null; fi; "
+                            + "sleep 1; done; wait $pid; echo $? > ")
+                    .append(name).append(PACKED_EXIT_SUFFIX).append("; fi )\n");
+        }
+        // the failures of the jobs are told by their exit codes
+        script.append("rm -f \"$0\"\nexit 0\nLSF_PACK_END\n");
+        script.append("chmod 755 ").append(packFileName);
+        return script.toString();
+    }
+
+    /**
+     * collects the output and the exit code of a job that ran in a pack
+     *
+     * @param batchSystem
+     * @param jobStatus the final status of the pack
+     * @param jobFileName
+     * @return the collected information
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected JobHarvest harvestPacked(BatchSystem batchSystem,
+            String jobStatus, String jobFileName)
+            throws InterruptedException, IOException {
+        String[] parts = batchSystem.runCommandForOutput("cat " + jobFileName
+                + PACKED_OUTPUT_SUFFIX + "; printf '\\n%s\\n' "
+                + PACKED_RESULT_SEPARATOR + "; cat " + jobFileName
+                + PACKED_EXIT_SUFFIX).split("\n" + PACKED_RESULT_SEPARATOR
+                        + "\n", -1);
+        Integer exitCode;
+        try {
+            exitCode = Integer.valueOf(parts[parts.length - 1].trim());
+        } catch (NumberFormatException e) {
+            // the job didn't run (e.g. the pack was killed before it)
+            exitCode = -1;
+        }
+        return new JobHarvest(jobStatus, exitCode, "",
+                parts.length > 1 ? parts[0] : "", "", "");
+    }
+
+    /**
+     * keeps the job from running if the pack hasn't started it yet (the
+     * pack isn't killed, it has the jobs of other builds)
+     *
+     * @param batchSystem
+     * @param listener
+     * @param jobFileName
+     * @throws InterruptedException
+     */
+    protected void cancelPackedJob(BatchSystem batchSystem,
+            BuildListener listener, String jobFileName)
+            throws InterruptedException {
+        listener.getLogger().println("The job is packed with the jobs of "
+                + "other builds, it is cancelled (or killed if it has "
+                + "already started).");
+        batchSystem.runCommand("touch " + jobFileName + PACKED_CANCEL_SUFFIX,
+                listener);
+    }
+
+    /**
+     * moves a job that pended past the SLA of the cloud to the alternative
+     * queue of the cloud that could run it soonest: an open and active queue
+     * with fewer pending jobs than the current one (and, if the waits of
+     * both queues are known, a shorter usual wait)
+     *
+     * @param batchSystem
+     * @param cloud
+     * @param listener
+     * @param timeline the timeline on which the move is recorded
      * @param jobId
+     * @param queue the current queue of the job
+     * @param pendingMilliseconds how long the job has pended in the queue
+     * @param leftQueues the queues the job was already moved from
+     * @return the queue the job was moved to or null if it wasn't moved
      * @throws InterruptedException
      */
-    protected void cleanUpFiles(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener, String jobFileName, String jobId)
+    protected String switchQueue(BatchSystem batchSystem, BatchCloud cloud,
+            BuildListener listener, BuildTimeline timeline, String jobId,
+            String queue, long pendingMilliseconds, Set<String> leftQueues)
             throws InterruptedException {
-        String filesToDelete = jobFileName + " "
-                + PROGRESS_FILE + " " + COMMUNICATION_FILE;
-        for (String uploadedFile : uploadedFiles.split(",")) {
-            filesToDelete = filesToDelete + " " + uploadedFile.trim();
+        List<String> queues = new ArrayList<String>();
+        for (String candidate : cloud.getAlternativeQueueList()) {
+            if (!candidate.equals(queue) && !leftQueues.contains(candidate)) {
+                queues.add(candidate);
+            }
+        }
+        if (queues.isEmpty()) {
+            return null;
+        }
+        listener.getLogger().println("Job " + jobId + " has pended in queue "
+                + queue + " for " + Util.getTimeSpanString(pendingMilliseconds)
+                + ", longer than the SLA of the cloud.");
+        try {
+            String pendingReasons = batchSystem.getPendingReasons(jobId);
+            listener.getLogger().println("Pending reasons: " + pendingReasons);
+            queues.add(queue);
+            Map<String, Integer> pendingJobs
+                    = batchSystem.getOpenQueuePendingJobs(queues);
+            // a closed or inactive queue runs nothing sooner
+            Integer currentPendingJobs = pendingJobs.containsKey(queue)
+                    ? pendingJobs.get(queue) : Integer.MAX_VALUE;
+            QueueWaitStatistics waits = cloud.getQueueWaitStatistics();
+            long currentWait = waits.getMedianWait(queue);
+            String best = null;
+            for (Map.Entry<String, Integer> candidate
+                    : pendingJobs.entrySet()) {
+                long wait = waits.getMedianWait(candidate.getKey());
+                if (candidate.getKey().equals(queue)
+                        || candidate.getValue() >= currentPendingJobs
+                        || (wait >= 0 && currentWait >= 0
+                        && wait >= currentWait)) {
+                    continue;
+                }
+                if (best == null
+                        || candidate.getValue() < pendingJobs.get(best)) {
+                    best = candidate.getKey();
+                }
+            }
+            if (best == null) {
+                listener.getLogger().println("No alternative queue could run "
+                        + "the job sooner.");
+                return null;
+            }
+            batchSystem.switchQueue(jobId, best);
+            timeline.addQueueSwitch(queue, best, pendingReasons);
+            listener.getLogger().println("Moved job " + jobId + " from queue "
+                    + queue + " to queue " + best + ".");
+            return best;
+        } catch (IOException e) {
+            // the job keeps waiting where it is
+            listener.getLogger().println("Failed to move job " + jobId
+                    + " to another queue: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * decides whether a pending job should also be run on the slave itself:
+     * once it pended for the configured time, if the queue usually makes the
+     * jobs wait longer than this job ran in the previous build
+     *
+     * @param build
+     * @param cloud
+     * @param listener
+     * @param queueType
+     * @param pendingMilliseconds how long the job has pended
+     * @return true if the job should be run locally
+     */
+    protected boolean shouldRunLocally(AbstractBuild<?, ?> build,
+            BatchCloud cloud, BuildListener listener, String queueType,
+            long pendingMilliseconds) {
+        // the local run needs the files in the slave working directory
+        if (burstAfterMinutes <= 0 || cloud == null
+                || !BatchCloud.STAGING_SHARED.equals(cloud.getStagingMode())
+                || pendingMilliseconds < burstAfterMinutes * 60000L) {
+            return false;
+        }
+        long medianWait = cloud.getQueueWaitStatistics()
+                .getMedianWait(queueType);
+        long runTime = getPreviousRunTime(build);
+        if (medianWait >= 0 && runTime > 0 && medianWait <= runTime) {
+            return false;
+        }
+        listener.getLogger().println("The job has pended for "
+                + Util.getTimeSpanString(pendingMilliseconds)
+                + (medianWait >= 0 ? " (usual wait in queue " + queueType
+                        + ": " + Util.getTimeSpanString(medianWait) + ")"
+                        : "") + ", running it on the slave as well.");
+        return true;
+    }
+
+    /**
+     * @param build
+     * @return how long the job of the previous build was running or 0 if it
+     * isn't known
+     */
+    protected long getPreviousRunTime(AbstractBuild<?, ?> build) {
+        AbstractBuild<?, ?> previous = build.getPreviousCompletedBuild();
+        if (previous == null) {
+            return 0;
+        }
+        BuildTimeline timeline = previous.getAction(BuildTimeline.class);
+        // the running phase is named after the status of the job
+        return timeline == null ? 0 : timeline.getDuration("RUN");
+    }
+
+    /**
+     * starts the job script in the background on the slave, in its own
+     * directory next to the script and in its own process group (so that
+     * it can be stopped with all of its processes)
+     *
+     * @param batchSystem
+     * @param listener
+     * @param jobFileName
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected void startLocalRun(BatchSystem batchSystem,
+            BuildListener listener, String jobFileName)
+            throws InterruptedException, IOException {
+        String directory = jobFileName + LOCAL_RUN_SUFFIX;
+        // in a subshell, the session must stay in the working directory
+        batchSystem.runCommandForOutput("( mkdir -p " + directory + " && cd "
+                + directory + " && { setsid sh -c '../" + jobFileName
+                + " > ../" + jobFileName + LOCAL_OUTPUT_SUFFIX + " 2>&1; "
+                + "echo $? > ../" + jobFileName + LOCAL_EXIT_SUFFIX
+                + "' < /dev/null > /dev/null 2>&1 & echo $! > ../"
+                + jobFileName + LOCAL_PID_SUFFIX + "; } )");
+    }
+
+    /**
+     * @param batchSystem
+     * @param jobFileName
+     * @return the exit code of the local run or null if it hasn't ended
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected Integer getLocalExitCode(BatchSystem batchSystem,
+            String jobFileName) throws InterruptedException, IOException {
+        String exitCode = batchSystem.runCommandForOutput("cat " + jobFileName
+                + LOCAL_EXIT_SUFFIX + " 2>/dev/null || true").trim();
+        try {
+            return exitCode.isEmpty() ? null : Integer.valueOf(exitCode);
+        } catch (NumberFormatException e) {
+            // the exit code is still being written
+            return null;
+        }
+    }
+
+    /**
+     * kills the local run with all of its processes
+     *
+     * @param batchSystem
+     * @param listener
+     * @param jobFileName
+     * @throws InterruptedException
+     */
+    protected void stopLocalRun(BatchSystem batchSystem,
+            BuildListener listener, String jobFileName)
+            throws InterruptedException {
+        listener.getLogger().println("Stopping the local run of the job.");
+        batchSystem.runCommand("kill -TERM -- -$(cat " + jobFileName
+                + LOCAL_PID_SUFFIX + ") 2>/dev/null", listener);
+    }
+
+    /**
+     * waits until the job killed because its local run ended first has
+     * ended, then copies the files to download from the local run again (the
+     * job may have overwritten them before it was killed)
+     *
+     * @param batchSystem
+     * @param listener
+     * @param jobId
+     * @param jobFileName
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected void waitForKilledJob(BatchSystem batchSystem,
+            BuildListener listener, String jobId, String jobFileName)
+            throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis()
+                + KILLED_JOB_MAX_WAIT_MILLISECONDS;
+        while (!batchSystem.isEndStatus(batchSystem.getJobStatus(jobId))) {
+            if (System.currentTimeMillis() >= deadline) {
+                listener.getLogger().println("Job " + jobId + " hasn't "
+                        + "ended after it was killed, its files may be "
+                        + "mixed with the files of the local run.");
+                break;
+            }
+            Thread.sleep(KILLED_JOB_CHECK_MILLISECONDS);
+        }
+        String directory = jobFileName + LOCAL_RUN_SUFFIX;
+        for (String file : getJobOutputFiles()) {
+            batchSystem.runCommand("( cd " + directory + " && cp \"" + file
+                    + "\" \"" + slaveWorkingDirectory + "/\" ) > /dev/null "
+                    + "2>&1", listener);
+        }
+    }
+
+    /**
+     * collects the output and the exit code of the local run
+     *
+     * @param batchSystem
+     * @param jobStatus
+     * @param jobFileName
+     * @param exitCode
+     * @return the collected information
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected JobHarvest harvestLocalRun(BatchSystem batchSystem,
+            String jobStatus, String jobFileName, int exitCode)
+            throws InterruptedException, IOException {
+        return new JobHarvest(jobStatus, exitCode, "",
+                batchSystem.runCommandForOutput("cat " + jobFileName
+                        + LOCAL_OUTPUT_SUFFIX), "", "");
+    }
+
+    /**
+     * @param batchSystem
+     * @param jobStatus
+     * @param harvest
+     * @return true if the job completed successfully (for a packed job, the
+     * pack completed and the job exited with 0)
+     */
+    protected boolean isSuccessful(BatchSystem batchSystem, String jobStatus,
+            JobHarvest harvest) {
+        return batchSystem.jobCompletedSuccessfully(jobStatus)
+                && (harvest == null || harvest.getExitCode() == null
+                || harvest.getExitCode() == 0);
+    }
+
+    /**
+     * prints the error log, the exit code and the resource usage of the
+     * ended job
+     *
+     * @param listener
+     * @param batchSystem
+     * @param jobStatus
+     * @param harvest
+     */
+    protected void printHarvest(BuildListener listener,
+            BatchSystem batchSystem, String jobStatus, JobHarvest harvest) {
+        if (batchSystem.jobExitedWithErrors(jobStatus)) {
+            listener.getLogger().println();
+            listener.getLogger().println("Job exited with following errors:");
+            listener.getLogger().print(harvest.getErrorLog());
+        }
+        if (harvest.getExitCode() != null && harvest.getExitCode() != 0) {
+            listener.getLogger().println();
+            listener.getLogger().println("Exited with exit code "
+                    + harvest.getExitCode() + ".");
         }
-        for (String fileToDownload : filesToDownload.split(",")) {
-            filesToDelete = filesToDelete + " " + fileToDownload.trim();
+        if (!harvest.getResourceUsage().isEmpty()) {
+            listener.getLogger().println(harvest.getResourceUsage());
         }
+    }
+
+    /**
+     * cleans up the temporary files in the master and the files with fixed
+     * names in the slave (the next build in the workspace uses the same
+     * names) and, in the background (the build doesn't wait for it),
+     * downloads the files to download later and cleans up the files of the
+     * job which have names of their own
+     *
+     * @param build
+     * @param batchSystem
+     * @param jobFileName
+     * @param jobId
+     * @param downloadLater true if the files to download later should be
+     * downloaded before the clean up
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void cleanUpFiles(AbstractBuild<?, ?> build,
+            BatchSystem batchSystem, String jobFileName, String jobId,
+            boolean downloadLater) throws IOException, InterruptedException {
+        final List<String> filesToDelete = new ArrayList<String>();
+        filesToDelete.add(jobFileName);
+        filesToDelete.add(PROGRESS_FILE);
+        filesToDelete.add(COMMUNICATION_FILE);
+        // the pack script deletes itself, it may still run the jobs of
+        // other builds
+        filesToDelete.add(jobFileName + PACKED_OUTPUT_SUFFIX);
+        filesToDelete.add(jobFileName + PACKED_EXIT_SUFFIX);
+        filesToDelete.add(jobFileName + PACKED_CANCEL_SUFFIX);
+        filesToDelete.add(jobFileName + LOCAL_RUN_SUFFIX);
+        filesToDelete.add(jobFileName + LOCAL_OUTPUT_SUFFIX);
+        filesToDelete.add(jobFileName + LOCAL_EXIT_SUFFIX);
+        filesToDelete.add(jobFileName + LOCAL_PID_SUFFIX);
+        filesToDelete.add(jobFileName + STAGED_SUFFIX);
+        filesToDelete.addAll(batchSystem.getJobFiles(jobId));
+        for (String uploadedFile : uploadedFiles.split(",")) {
+            filesToDelete.add(uploadedFile.trim());
+        }
+        filesToDelete.addAll(getJobOutputFiles());
         File file = new File(masterWorkingDirectory + jobFileName);
         file.delete();
         for (String fileToSend : filesToSend.split(",")) {
-            String fileName = new File(fileToSend.trim()).getName();
-            file = new File(masterWorkingDirectory + fileName);
-            file.delete();
-            filesToDelete = filesToDelete + " " + fileName;
+            filesToDelete.add(new File(fileToSend.trim()).getName());
         }
         file = new File(masterWorkingDirectory + COMMUNICATION_FILE);
         file.delete();
-        Shell shell = new Shell("rm " + filesToDelete);
-        shell.perform(build, launcher, listener);
+        if (build.getWorkspace() == null) {
+            return;
+        }
+        final FilePath directory = new FilePath(
+                build.getWorkspace().getChannel(), slaveWorkingDirectory);
+        // the files to download later are moved out of the way of the next
+        // build before they are downloaded
+        final FilePath laterDirectory
+                = directory.child(jobFileName + LATER_SUFFIX);
+        List<String> filesToDownloadLater = new ArrayList<String>();
+        if (downloadLater) {
+            for (String fileName : getFilesToDownloadLaterList()) {
+                FilePath file = directory.child(fileName);
+                if (file.exists()) {
+                    FilePath target = laterDirectory.child(fileName);
+                    target.getParent().mkdirs();
+                    file.renameTo(target);
+                    filesToDownloadLater.add(fileName);
+                }
+            }
+        }
+        final List<String> ownFiles = new ArrayList<String>();
+        ownFiles.add(jobFileName + LATER_SUFFIX);
+        for (String fileName : filesToDelete) {
+            // an empty name would be the working directory itself
+            if (fileName.isEmpty()) {
+                continue;
+            }
+            if (fileName.startsWith(jobFileName)
+                    || fileName.startsWith("LSFJOB_")) {
+                ownFiles.add(fileName);
+            } else {
+                deleteFromSlave(directory, fileName);
+            }
+        }
+        List<PostProcessingPipeline.Step> steps
+                = new ArrayList<PostProcessingPipeline.Step>();
+        File downloadDirectory = getDownloadDirectory(build);
+        final BuildTimeline timeline = getTimeline(build);
+        final AbstractBuild<?, ?> finishedBuild = build;
+        // copied locally if the slave directory is shared
+        final File sharedLaterDirectory = sharedFileSystem == null ? null
+                : getSharedFile(jobFileName + LATER_SUFFIX);
+        for (final String fileName : filesToDownloadLater) {
+            final File destination = new File(downloadDirectory, fileName);
+            steps.add(new PostProcessingPipeline.Step("download "
+                    + fileName) {
+                @Override
+                public void run()
+                        throws IOException, InterruptedException {
+                    if (sharedLaterDirectory != null) {
+                        destination.getParentFile().mkdirs();
+                        Files.copy(new File(sharedLaterDirectory, fileName)
+                                .toPath(), destination.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } else {
+                        laterDirectory.child(fileName).copyTo(
+                                new FilePath(destination));
+                    }
+                }
+
+                @Override
+                protected void failed(IOException e) {
+                    // shown on the timeline page of the build
+                    timeline.addFailure(getDescription(), e.toString());
+                    try {
+                        finishedBuild.save();
+                    } catch (IOException saveFailure) {
+                        Logger.getLogger(BatchBuilder.class.getName()).log(
+                                Level.WARNING, "Failed to save "
+                                + finishedBuild, saveFailure);
+                    }
+                }
+            });
+        }
+        steps.add(new PostProcessingPipeline.Step("delete the temporary "
+                + "files from the slave") {
+            @Override
+            public void run() throws InterruptedException {
+                for (String fileName : ownFiles) {
+                    deleteFromSlave(directory, fileName);
+                }
+            }
+        });
+        // the slave mustn't be terminated while the work uses its channel
+        final BatchSlave slave = build.getBuiltOn() instanceof BatchSlave
+                ? (BatchSlave) build.getBuiltOn() : null;
+        if (slave != null) {
+            slave.acquireLease();
+        }
+        PostProcessingPipeline.submit(build.getFullDisplayName(), steps,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (slave != null) {
+                            slave.releaseLease();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * deletes the file or directory from the slave if it exists
+     *
+     * @param directory the slave working directory
+     * @param fileName
+     * @throws InterruptedException
+     */
+    private static void deleteFromSlave(FilePath directory, String fileName)
+            throws InterruptedException {
+        try {
+            directory.child(fileName).deleteRecursive();
+        } catch (IOException e) {
+            // some of the files are missing (e.g. the job was never
+            // submitted)
+            Logger.getLogger(BatchBuilder.class.getName()).log(Level.FINE,
+                    "Failed to delete " + fileName, e);
+        }
     }
 
     @Override
@@ -487,6 +2363,58 @@ public class BatchBuilder extends Builder {
             load();
         }
 
+        public ListBoxModel doFillStallActionItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Warn", STALL_WARN);
+            items.add("Warn and print diagnostics", STALL_DIAGNOSE);
+            items.add("Print diagnostics, kill and requeue", STALL_REQUEUE);
+            return items;
+        }
+
+        public FormValidation doCheckBurstAfterMinutes(
+                @QueryParameter int value) {
+            return toValidation(value < 0 ? "The pending time can't be "
+                    + "negative" : null);
+        }
+
+        public FormValidation doCheckStallMinutes(@QueryParameter int value) {
+            return toValidation(value < 0 ? "The stall window can't be "
+                    + "negative" : null);
+        }
+
+        public FormValidation doCheckSlots(@QueryParameter int value) {
+            return toValidation(ResourceRequirements.checkCount(value,
+                    "slots"));
+        }
+
+        public FormValidation doCheckMemoryMB(@QueryParameter int value) {
+            return toValidation(ResourceRequirements.checkCount(value,
+                    "memory"));
+        }
+
+        public FormValidation doCheckSpan(@QueryParameter String value) {
+            return toValidation(ResourceRequirements.checkSpan(value));
+        }
+
+        public FormValidation doCheckAffinity(@QueryParameter String value) {
+            return toValidation(ResourceRequirements.checkAffinity(value));
+        }
+
+        public FormValidation doCheckHostSelection(
+                @QueryParameter String value) {
+            return toValidation(ResourceRequirements.checkHosts(value));
+        }
+
+        /**
+         * @param error
+         * @return the validation of a field with the given error (null if
+         * the field is valid)
+         */
+        static FormValidation toValidation(String error) {
+            return error == null ? FormValidation.ok()
+                    : FormValidation.error(error);
+        }
+
         public void doStartUpload(StaplerRequest req, StaplerResponse rsp)
                 throws IOException, ServletException {
             rsp.setContentType("text/html");
@@ -24,6 +24,9 @@
 package org.jenkinsci.plugins.lsf;
 
 import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
@@ -31,15 +34,35 @@ import hudson.model.Node;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
 import hudson.slaves.NodeProvisioner.PlannedNode;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.BuildListenerAdapter;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 /**
  *
@@ -59,13 +82,94 @@ public class BatchCloud extends Cloud {
     // credentials for connecting to the slave computer through ssh 
     private String username;
     private Secret password;
+    // maximum size of the cached job results in megabytes
+    private int resultCacheSizeMB = DEFAULT_RESULT_CACHE_SIZE_MB;
+    // how many times a preempted or host-failed job is put back to the queue
+    private int maxRequeues;
+    // seconds to wait before the first requeue (doubled for every next one)
+    private int requeueBackoffSeconds;
+    // pending jobs in the queue above which the cluster is saturated
+    // (0 disables load aware provisioning)
+    private int maxQueuePendingJobs;
+    // how many slaves the cloud keeps while the cluster is saturated
+    private int saturatedSlaveLimit;
+    // the latest load of the queue and the cluster
+    private transient volatile ClusterSnapshot snapshot;
+    // how many executors every created slave has
+    private int executorsPerSlave;
+    // how the files of the jobs reach the execution hosts
+    private String stagingMode;
+    // directory on the local disk of the execution hosts for the jobs
+    private String scratchDirectory;
+    // path of a file system on the slave which master has mounted at
+    // sharedMasterPath (empty if nothing is shared)
+    private String sharedSlavePath;
+    private String sharedMasterPath;
+    // how many LSF commands per second the builds of the cloud may run
+    // (0 means no limit)
+    private int maxCommandsPerSecond;
+    // how long an LSF command may run before it's killed (0 for the
+    // default)
+    private int commandTimeoutSeconds;
+    // how many short jobs of different builds may be submitted as one LSF
+    // job (1 or less means no packing)
+    private int maxPackSize;
+    // how long the first job of a pack waits for the others
+    private int maxPackWaitSeconds;
+    // how many LSF jobs of a project and of the whole cloud may be in flight
+    // at once (0 means no limit)
+    private int maxJobsPerProject;
+    private int maxCloudJobs;
+    // resource requirements of the jobs that don't set their own
+    private int defaultSlots;
+    private int defaultMemoryMB;
+    private String defaultSpan;
+    private String defaultAffinity;
+    private boolean defaultExclusive;
+    private String defaultHostSelection;
+    // how long a job may pend before it's moved to an alternative queue
+    // (0 never moves the jobs)
+    private int pendingSlaMinutes;
+    // the queues the late jobs may be moved to (separated by commas)
+    private String alternativeQueues;
+
+    // the job copies the files through the shared file system
+    public static final String STAGING_SHARED = "shared";
+    // LSF copies the files to the scratch directory (bsub -f)
+    public static final String STAGING_TRANSFER = "transfer";
+    // the job copies the files once to the scratch directory and runs there
+    public static final String STAGING_SCRATCH = "scratch";
+
+    // snapshots older than this are not trusted for provisioning decisions
+    private static final long SNAPSHOT_MAX_AGE_MILLISECONDS = 5 * 60 * 1000;
+    // slaves are created and connected in parallel by at most this many
+    // threads (shared by all the clouds)
+    private static final ExecutorService PROVISIONING_POOL
+            = Executors.newFixedThreadPool(Integer.getInteger(
+                            BatchCloud.class.getName() + ".provisioningThreads",
+                            10), new NamingThreadFactory(
+                            new DaemonThreadFactory(), "BatchCloud.provision"));
+
+    private static final int DEFAULT_RESULT_CACHE_SIZE_MB = 1024;
 
     private static final Logger LOGGER = Logger
             .getLogger(BatchCloud.class.getName());
 
     @DataBoundConstructor
     public BatchCloud(String cloudName, String queueType, String label,
-            String hostname, int port, String username, String password) {
+            String hostname, int port, String username, String password,
+            int resultCacheSizeMB, int maxRequeues,
+            int requeueBackoffSeconds, int maxQueuePendingJobs,
+            int saturatedSlaveLimit, int executorsPerSlave,
+            String stagingMode, String scratchDirectory,
+            String sharedSlavePath, String sharedMasterPath,
+            int maxCommandsPerSecond, int maxPackSize,
+            int maxPackWaitSeconds, int maxJobsPerProject,
+            int maxCloudJobs, int defaultSlots, int defaultMemoryMB,
+            String defaultSpan, String defaultAffinity,
+            boolean defaultExclusive, String defaultHostSelection,
+            int pendingSlaMinutes, String alternativeQueues,
+            int commandTimeoutSeconds) {
         super(cloudName);
         this.cloudName = cloudName;
         this.queueType = queueType;
@@ -74,10 +178,51 @@ public class BatchCloud extends Cloud {
         this.port = port;
         this.username = username;
         this.password = Secret.fromString(password);
+        this.resultCacheSizeMB = resultCacheSizeMB;
+        this.maxRequeues = maxRequeues;
+        this.requeueBackoffSeconds = requeueBackoffSeconds;
+        this.maxQueuePendingJobs = maxQueuePendingJobs;
+        this.saturatedSlaveLimit = saturatedSlaveLimit;
+        this.executorsPerSlave = executorsPerSlave;
+        this.stagingMode = stagingMode;
+        this.scratchDirectory = scratchDirectory;
+        this.sharedSlavePath = sharedSlavePath;
+        this.sharedMasterPath = sharedMasterPath;
+        this.maxCommandsPerSecond = maxCommandsPerSecond;
+        this.maxPackSize = maxPackSize;
+        this.maxPackWaitSeconds = maxPackWaitSeconds;
+        this.maxJobsPerProject = maxJobsPerProject;
+        this.maxCloudJobs = maxCloudJobs;
+        this.defaultSlots = defaultSlots;
+        this.defaultMemoryMB = defaultMemoryMB;
+        this.defaultSpan = defaultSpan;
+        this.defaultAffinity = defaultAffinity;
+        this.defaultExclusive = defaultExclusive;
+        this.defaultHostSelection = defaultHostSelection;
+        this.pendingSlaMinutes = pendingSlaMinutes;
+        this.alternativeQueues = alternativeQueues;
+        this.commandTimeoutSeconds = commandTimeoutSeconds;
+    }
+
+    /**
+     * @param project
+     * @return the cloud that provisions slaves for the project or null if
+     * there is none
+     */
+    public static BatchCloud getCloud(AbstractProject<?, ?> project) {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof BatchCloud
+                    && cloud.canProvision(project.getAssignedLabel())) {
+                return (BatchCloud) cloud;
+            }
+        }
+        return null;
     }
 
     /**
-     * Creates a slave when there is a running job with an appropriate label
+     * Creates slaves when there are running jobs with an appropriate label,
+     * splitting the workload into slaves with the configured number of
+     * executors which are connected in parallel
      *
      * @param label
      * @param excessWorkload
@@ -85,24 +230,264 @@ public class BatchCloud extends Cloud {
      */
     @Override
     public Collection<NodeProvisioner.PlannedNode> provision(Label label,
-            final int excessWorkload) {
+            int excessWorkload) {
         List<PlannedNode> list = new ArrayList<PlannedNode>();
-        list.add(new PlannedNode(this.getDisplayName(),
-                Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                    @Override
-                    public Node call() throws Exception {
-                        BatchSlave s = doProvision(excessWorkload);
-                        return s;
-                    }
-                }), excessWorkload));
+        int workload = getProvisionableWorkload(excessWorkload);
+        while (workload > 0) {
+            final int numExecutors = Math.min(workload,
+                    getExecutorsPerSlave());
+            workload -= numExecutors;
+            list.add(new PlannedNode(this.getDisplayName(),
+                    PROVISIONING_POOL.submit(new Callable<Node>() {
+                        @Override
+                        public Node call() throws Exception {
+                            BatchSlave s = doProvision(numExecutors);
+                            return s;
+                        }
+                    }), numExecutors));
+        }
         return list;
     }
 
-    private BatchSlave doProvision(int numExecutors) 
-            throws Descriptor.FormException, IOException {
+    /**
+     * creates a slave and waits until it is connected, so that the
+     * provisioner only counts slaves that can take builds
+     *
+     * @param numExecutors
+     * @return the connected slave
+     * @throws Exception
+     */
+    private BatchSlave doProvision(int numExecutors) throws Exception {
+        long started = System.currentTimeMillis();
         String name = "BatchSystem-" + UUID.randomUUID().toString();
-        return new BatchSlave(name, this.label, numExecutors, hostname, port, 
-                username, password);
+        BatchSlave slave = new BatchSlave(name, cloudName, this.label,
+                numExecutors, hostname, port, username, password);
+        Jenkins.getInstance().addNode(slave);
+        Computer computer = slave.toComputer();
+        if (computer != null) {
+            computer.connect(false).get();
+        }
+        if (computer == null || computer.isOffline()) {
+            slave.terminate();
+            throw new IOException("Failed to connect slave " + name);
+        }
+        slave.setProvisioningTime(started, System.currentTimeMillis());
+        return slave;
+    }
+
+    /**
+     * decides how much of the workload should get slaves now, depending on
+     * the latest load of the queue and the cluster
+     *
+     * @param excessWorkload
+     * @return the number of executors that should be provisioned
+     */
+    protected int getProvisionableWorkload(int excessWorkload) {
+        ClusterSnapshot current = snapshot;
+        if (!isLoadAware() || current == null
+                || current.isOlderThan(SNAPSHOT_MAX_AGE_MILLISECONDS)) {
+            return excessWorkload;
+        }
+        // not saturated, the jobs can start right away or soon (an idle
+        // cluster may report no free slots)
+        if (current.getFreeSlots() > 0
+                || current.getPendingJobs() < maxQueuePendingJobs) {
+            return excessWorkload;
+        }
+        // saturated, new jobs could only wait in the queue
+        int slaves = countSlaves();
+        if (slaves >= getSaturatedSlaveLimit()) {
+            LOGGER.log(Level.FINE, "Delaying provisioning, queue {0} has {1} "
+                    + "pending jobs and no free slots", new Object[]{
+                        queueType, current.getPendingJobs()});
+            return 0;
+        }
+        return 1;
+    }
+
+    /**
+     * @return the number of slaves created by this cloud
+     */
+    protected int countSlaves() {
+        int slaves = 0;
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (node instanceof BatchSlave
+                    && cloudName.equals(((BatchSlave) node).getCloudName())) {
+                slaves++;
+            }
+        }
+        return slaves;
+    }
+
+    /**
+     * takes a new snapshot of the load of the queue and the cluster
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void refreshSnapshot() throws IOException, InterruptedException {
+        snapshot = ClusterSnapshot.take(ClusterChannel.forCloud(this),
+                getRateLimiter(), queueType, isLoadAware());
+    }
+
+    /**
+     * @return the jobs of the builds that are known to the latest snapshot
+     * (built from memory only, so viewing them doesn't run LSF commands)
+     */
+    public List<InFlightJob> getInFlightJobs() {
+        List<InFlightJob> jobs = new ArrayList<InFlightJob>();
+        ClusterSnapshot current = snapshot;
+        if (current == null) {
+            return jobs;
+        }
+        for (JobJournal.Entry entry : JobJournal.get().getEntries()) {
+            if (entry.getJobId() == null) {
+                continue;
+            }
+            ClusterSnapshot.Job job = current.getJob(entry.getJobId());
+            if (job != null) {
+                jobs.add(new InFlightJob(entry, job));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * kills or requeues the selected jobs
+     *
+     * @param request
+     * @return redirect back to the page of the cloud
+     * @throws InterruptedException
+     */
+    @RequirePOST
+    public HttpResponse doBulkAction(StaplerRequest request)
+            throws InterruptedException {
+        checkPermission(Jenkins.ADMINISTER);
+        String[] selected = request.getParameterValues("jobId");
+        if (selected == null) {
+            return HttpResponses.redirectToDot();
+        }
+        // only the jobs of this cloud's builds can be acted on
+        Set<String> allowed = new HashSet<String>();
+        for (InFlightJob job : getInFlightJobs()) {
+            allowed.add(job.getJobId());
+        }
+        BatchSystem batchSystem = new LSF(ClusterChannel.forCloud(this),
+                new BuildListenerAdapter(
+                        new LogTaskListener(LOGGER, Level.INFO)));
+        configureCommands(batchSystem);
+        boolean requeue = request.getParameter("requeue") != null;
+        for (String jobId : selected) {
+            if (!allowed.contains(jobId)) {
+                continue;
+            }
+            LOGGER.log(Level.INFO, "{0} LSF job {1} from cloud {2}",
+                    new Object[]{requeue ? "Requeueing" : "Killing", jobId,
+                        cloudName});
+            if (requeue) {
+                batchSystem.requeueJob(jobId);
+            } else {
+                batchSystem.killJob(jobId);
+            }
+        }
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * @return the number of unfinished jobs in every job group of the cloud
+     * (from the latest snapshot)
+     */
+    public Map<String, Integer> getJobGroupCounts() {
+        ClusterSnapshot current = snapshot;
+        if (current == null) {
+            return Collections.emptyMap();
+        }
+        return current.getJobGroupCounts(getJobGroups());
+    }
+
+    /**
+     * kills all the jobs of a job group of the cloud with a single command
+     *
+     * @param request
+     * @return redirect back to the page of the cloud
+     * @throws InterruptedException
+     */
+    @RequirePOST
+    public HttpResponse doKillJobGroup(StaplerRequest request)
+            throws InterruptedException {
+        checkPermission(Jenkins.ADMINISTER);
+        String group = request.getParameter("group");
+        // only the groups of this cloud can be acted on
+        if (group == null || !getJobGroups().contains(group)) {
+            return HttpResponses.redirectToDot();
+        }
+        LOGGER.log(Level.INFO, "Killing the LSF jobs of group {0}", group);
+        BatchSystem batchSystem = new LSF(ClusterChannel.forCloud(this),
+                new BuildListenerAdapter(
+                        new LogTaskListener(LOGGER, Level.INFO)));
+        configureCommands(batchSystem);
+        batchSystem.killJobGroup(group);
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * @return the latest snapshot or null if none was taken yet
+     */
+    public ClusterSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * An LSF job of a build together with its latest state in the cluster.
+     */
+    public static class InFlightJob {
+
+        private final JobJournal.Entry entry;
+        private final ClusterSnapshot.Job job;
+
+        public InFlightJob(JobJournal.Entry entry, ClusterSnapshot.Job job) {
+            this.entry = entry;
+            this.job = job;
+        }
+
+        public String getJobId() {
+            return job.getJobId();
+        }
+
+        public ClusterSnapshot.Job getJob() {
+            return job;
+        }
+
+        /**
+         * @return the build that owns the job or null if it doesn't exist
+         */
+        public AbstractBuild<?, ?> getBuild() {
+            return entry.getBuild();
+        }
+
+        public String getProjectName() {
+            return entry.getProjectName();
+        }
+
+        public int getBuildNumber() {
+            return entry.getBuildNumber();
+        }
+
+        /**
+         * @return how long the build has been running
+         */
+        public String getElapsedTime() {
+            AbstractBuild<?, ?> build = getBuild();
+            return build == null ? "" : Util.getTimeSpanString(
+                    System.currentTimeMillis() - build.getStartTimeInMillis());
+        }
+    }
+
+    /**
+     * @return true if provisioning depends on the load of the cluster
+     */
+    public boolean isLoadAware() {
+        return maxQueuePendingJobs > 0;
     }
 
     /**
@@ -176,6 +561,302 @@ public class BatchCloud extends Cloud {
         this.password = Secret.fromString(password);
     }
 
+    public int getResultCacheSizeMB() {
+        // clouds configured before the cache existed have no size
+        if (resultCacheSizeMB <= 0) {
+            return DEFAULT_RESULT_CACHE_SIZE_MB;
+        }
+        return resultCacheSizeMB;
+    }
+
+    public void setResultCacheSizeMB(int resultCacheSizeMB) {
+        this.resultCacheSizeMB = resultCacheSizeMB;
+    }
+
+    public int getMaxRequeues() {
+        return Math.max(maxRequeues, 0);
+    }
+
+    public void setMaxRequeues(int maxRequeues) {
+        this.maxRequeues = maxRequeues;
+    }
+
+    public int getRequeueBackoffSeconds() {
+        return Math.max(requeueBackoffSeconds, 0);
+    }
+
+    public void setRequeueBackoffSeconds(int requeueBackoffSeconds) {
+        this.requeueBackoffSeconds = requeueBackoffSeconds;
+    }
+
+    public int getMaxQueuePendingJobs() {
+        return maxQueuePendingJobs;
+    }
+
+    public void setMaxQueuePendingJobs(int maxQueuePendingJobs) {
+        this.maxQueuePendingJobs = maxQueuePendingJobs;
+    }
+
+    public int getSaturatedSlaveLimit() {
+        return Math.max(saturatedSlaveLimit, 1);
+    }
+
+    public void setSaturatedSlaveLimit(int saturatedSlaveLimit) {
+        this.saturatedSlaveLimit = saturatedSlaveLimit;
+    }
+
+    public int getExecutorsPerSlave() {
+        // clouds configured before the workload was split have one executor
+        // per slave
+        return Math.max(executorsPerSlave, 1);
+    }
+
+    public void setExecutorsPerSlave(int executorsPerSlave) {
+        this.executorsPerSlave = executorsPerSlave;
+    }
+
+    public String getStagingMode() {
+        if (stagingMode == null || stagingMode.isEmpty()) {
+            return STAGING_SHARED;
+        }
+        return stagingMode;
+    }
+
+    public void setStagingMode(String stagingMode) {
+        this.stagingMode = stagingMode;
+    }
+
+    public String getScratchDirectory() {
+        if (scratchDirectory == null || scratchDirectory.trim().isEmpty()) {
+            return "/tmp";
+        }
+        return scratchDirectory.trim();
+    }
+
+    public void setScratchDirectory(String scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    public String getSharedSlavePath() {
+        return sharedSlavePath;
+    }
+
+    public void setSharedSlavePath(String sharedSlavePath) {
+        this.sharedSlavePath = sharedSlavePath;
+    }
+
+    public String getSharedMasterPath() {
+        return sharedMasterPath;
+    }
+
+    public void setSharedMasterPath(String sharedMasterPath) {
+        this.sharedMasterPath = sharedMasterPath;
+    }
+
+    public int getMaxCommandsPerSecond() {
+        return maxCommandsPerSecond;
+    }
+
+    public void setMaxCommandsPerSecond(int maxCommandsPerSecond) {
+        this.maxCommandsPerSecond = maxCommandsPerSecond;
+    }
+
+    public int getCommandTimeoutSeconds() {
+        return commandTimeoutSeconds;
+    }
+
+    public void setCommandTimeoutSeconds(int commandTimeoutSeconds) {
+        this.commandTimeoutSeconds = commandTimeoutSeconds;
+    }
+
+    public int getMaxPackSize() {
+        return maxPackSize;
+    }
+
+    public void setMaxPackSize(int maxPackSize) {
+        this.maxPackSize = maxPackSize;
+    }
+
+    public int getMaxPackWaitSeconds() {
+        return maxPackWaitSeconds;
+    }
+
+    public void setMaxPackWaitSeconds(int maxPackWaitSeconds) {
+        this.maxPackWaitSeconds = maxPackWaitSeconds;
+    }
+
+    public int getMaxJobsPerProject() {
+        return maxJobsPerProject;
+    }
+
+    public void setMaxJobsPerProject(int maxJobsPerProject) {
+        this.maxJobsPerProject = maxJobsPerProject;
+    }
+
+    public int getMaxCloudJobs() {
+        return maxCloudJobs;
+    }
+
+    public void setMaxCloudJobs(int maxCloudJobs) {
+        this.maxCloudJobs = maxCloudJobs;
+    }
+
+    public int getDefaultSlots() {
+        return defaultSlots;
+    }
+
+    public void setDefaultSlots(int defaultSlots) {
+        this.defaultSlots = defaultSlots;
+    }
+
+    public int getDefaultMemoryMB() {
+        return defaultMemoryMB;
+    }
+
+    public void setDefaultMemoryMB(int defaultMemoryMB) {
+        this.defaultMemoryMB = defaultMemoryMB;
+    }
+
+    public String getDefaultSpan() {
+        return defaultSpan;
+    }
+
+    public void setDefaultSpan(String defaultSpan) {
+        this.defaultSpan = defaultSpan;
+    }
+
+    public String getDefaultAffinity() {
+        return defaultAffinity;
+    }
+
+    public void setDefaultAffinity(String defaultAffinity) {
+        this.defaultAffinity = defaultAffinity;
+    }
+
+    public boolean getDefaultExclusive() {
+        return defaultExclusive;
+    }
+
+    public void setDefaultExclusive(boolean defaultExclusive) {
+        this.defaultExclusive = defaultExclusive;
+    }
+
+    public String getDefaultHostSelection() {
+        return defaultHostSelection;
+    }
+
+    public void setDefaultHostSelection(String defaultHostSelection) {
+        this.defaultHostSelection = defaultHostSelection;
+    }
+
+    public int getPendingSlaMinutes() {
+        return pendingSlaMinutes;
+    }
+
+    public void setPendingSlaMinutes(int pendingSlaMinutes) {
+        this.pendingSlaMinutes = pendingSlaMinutes;
+    }
+
+    public String getAlternativeQueues() {
+        return alternativeQueues;
+    }
+
+    public void setAlternativeQueues(String alternativeQueues) {
+        this.alternativeQueues = alternativeQueues;
+    }
+
+    /**
+     * @return the queues the late jobs may be moved to
+     */
+    public List<String> getAlternativeQueueList() {
+        List<String> queues = new ArrayList<String>();
+        if (alternativeQueues == null) {
+            return queues;
+        }
+        for (String queue : alternativeQueues.split(",")) {
+            if (!queue.trim().isEmpty()) {
+                queues.add(queue.trim());
+            }
+        }
+        return queues;
+    }
+
+    /**
+     * @return the resource requirements of the jobs that don't set their own
+     */
+    public ResourceRequirements getDefaultResourceRequirements() {
+        return new ResourceRequirements(defaultSlots, defaultMemoryMB,
+                defaultSpan, defaultAffinity, defaultExclusive,
+                defaultHostSelection);
+    }
+
+    /**
+     * @return the LSF job groups of the jobs submitted through this cloud
+     */
+    public JobGroups getJobGroups() {
+        return JobGroups.forCloud(this);
+    }
+
+    public QueueWaitStatistics getQueueWaitStatistics() {
+        return QueueWaitStatistics.forCloud(this);
+    }
+
+    /**
+     * @return the packer of the short jobs submitted through this cloud
+     */
+    public JobPacker getJobPacker() {
+        return JobPacker.forCloud(this);
+    }
+
+    /**
+     * @return the limiter of the LSF commands run for this cloud
+     */
+    public CommandRateLimiter getRateLimiter() {
+        return CommandRateLimiter.forCloud(this);
+    }
+
+    /**
+     * @return the breaker which suspends the LSF queries of this cloud while
+     * LSF doesn't answer
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return CircuitBreaker.forCloud(this);
+    }
+
+    /**
+     * makes the batch system run its commands with the rate limit, the
+     * deadline and the circuit breaker of this cloud
+     *
+     * @param batchSystem
+     */
+    public void configureCommands(BatchSystem batchSystem) {
+        batchSystem.setRateLimiter(getRateLimiter());
+        batchSystem.setCircuitBreaker(getCircuitBreaker());
+        batchSystem.setCommandTimeoutSeconds(commandTimeoutSeconds);
+    }
+
+    /**
+     * @return the file system shared by master and the slaves or null if the
+     * files have to be copied between them
+     */
+    public SharedFileSystem getSharedFileSystem() {
+        if (sharedSlavePath == null || sharedSlavePath.trim().isEmpty()
+                || sharedMasterPath == null
+                || sharedMasterPath.trim().isEmpty()) {
+            return null;
+        }
+        return new SharedFileSystem(sharedSlavePath, sharedMasterPath);
+    }
+
+    /**
+     * @return the cache of the job results of this cloud
+     */
+    public ResultCache getResultCache() {
+        return new ResultCache(new File(Jenkins.getInstance().getRootDir(),
+                "lsf-cloud/cache/" + cloudName),
+                getResultCacheSizeMB() * 1024L * 1024L);
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
@@ -188,5 +869,64 @@ public class BatchCloud extends Cloud {
         public String getDisplayName() {
             return "LSF Cloud";
         }
+
+        public ListBoxModel doFillStagingModeItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Shared file system", STAGING_SHARED);
+            items.add("LSF file transfer to the scratch directory",
+                    STAGING_TRANSFER);
+            items.add("Copy to the scratch directory", STAGING_SCRATCH);
+            return items;
+        }
+
+        public FormValidation doCheckCommandTimeoutSeconds(
+                @QueryParameter int value) {
+            return BatchBuilder.DescriptorImpl.toValidation(value < 0
+                    ? "The command timeout can't be negative" : null);
+        }
+
+        public FormValidation doCheckPendingSlaMinutes(
+                @QueryParameter int value) {
+            return BatchBuilder.DescriptorImpl.toValidation(value < 0
+                    ? "The pending SLA can't be negative" : null);
+        }
+
+        public FormValidation doCheckAlternativeQueues(
+                @QueryParameter String value) {
+            // the queue names are passed to the LSF commands as they are
+            return BatchBuilder.DescriptorImpl.toValidation(
+                    value.matches("[\\w.,\\s-]*") ? null
+                    : "Queue names may only contain letters, digits, "
+                    + "'_', '.' and '-'");
+        }
+
+        public FormValidation doCheckDefaultSlots(@QueryParameter int value) {
+            return BatchBuilder.DescriptorImpl.toValidation(
+                    ResourceRequirements.checkCount(value, "slots"));
+        }
+
+        public FormValidation doCheckDefaultMemoryMB(
+                @QueryParameter int value) {
+            return BatchBuilder.DescriptorImpl.toValidation(
+                    ResourceRequirements.checkCount(value, "memory"));
+        }
+
+        public FormValidation doCheckDefaultSpan(
+                @QueryParameter String value) {
+            return BatchBuilder.DescriptorImpl.toValidation(
+                    ResourceRequirements.checkSpan(value));
+        }
+
+        public FormValidation doCheckDefaultAffinity(
+                @QueryParameter String value) {
+            return BatchBuilder.DescriptorImpl.toValidation(
+                    ResourceRequirements.checkAffinity(value));
+        }
+
+        public FormValidation doCheckDefaultHostSelection(
+                @QueryParameter String value) {
+            return BatchBuilder.DescriptorImpl.toValidation(
+                    ResourceRequirements.checkHosts(value));
+        }
     }
 }
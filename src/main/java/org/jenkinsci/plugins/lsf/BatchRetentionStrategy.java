@@ -72,7 +72,9 @@ public class BatchRetentionStrategy extends RetentionStrategy<SlaveComputer> {
             return 1;
         }
 
-        if (computer.isIdle()) {
+        // the background work of the finished builds still uses the channel
+        if (computer.isIdle()
+                && !((BatchSlave) computer.getNode()).isLeased()) {
             final long idleMilliseconds
                     = System.currentTimeMillis()
                     - computer.getIdleStartMilliseconds();
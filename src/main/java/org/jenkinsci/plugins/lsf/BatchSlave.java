@@ -45,7 +45,22 @@ public class BatchSlave extends Slave {
     private static final Logger LOGGER = Logger.getLogger(BatchSlave.class
             .getName());
 
+    // name of the cloud that created the slave
+    private final String cloudName;
+    // when the cloud started creating the slave and when it got connected
+    private long provisioningStarted;
+    private long provisioningFinished;
+    // how many builds were already told about the provisioning time (one
+    // per executor, the builds that waited for the slave)
+    private transient int provisioningClaims;
+    // the LSF environment of the slave (null until it is probed after the
+    // slave connects)
+    private transient volatile NodeFacts nodeFacts;
+    // how many pieces of background work still use the channel of the slave
+    private transient int leases;
+
     public BatchSlave(String name,
+            String cloudName,
             String label,
             int numExecutors,
             String hostName,
@@ -62,9 +77,67 @@ public class BatchSlave extends Slave {
                         Secret.toString(password), "", ""),
                 new BatchRetentionStrategy(1),
                 Collections.<NodeProperty<?>>emptyList());
+        this.cloudName = cloudName;
         LOGGER.log(Level.INFO, "Constructing LSF slave {0}", name);
     }
 
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    /**
+     * @param started when the cloud started creating the slave
+     * @param finished when the slave got connected
+     */
+    public void setProvisioningTime(long started, long finished) {
+        this.provisioningStarted = started;
+        this.provisioningFinished = finished;
+    }
+
+    /**
+     * @return when the provisioning of the slave started and finished, or
+     * null if it isn't known or the builds that waited for it already got it
+     */
+    public synchronized long[] claimProvisioningTime() {
+        if (provisioningFinished == 0
+                || provisioningClaims >= getNumExecutors()) {
+            return null;
+        }
+        provisioningClaims++;
+        return new long[]{provisioningStarted, provisioningFinished};
+    }
+
+    /**
+     * @return the facts probed when the slave connected or null if they
+     * aren't known
+     */
+    public NodeFacts getNodeFacts() {
+        return nodeFacts;
+    }
+
+    public void setNodeFacts(NodeFacts nodeFacts) {
+        this.nodeFacts = nodeFacts;
+    }
+
+    /**
+     * keeps the slave from being terminated while it is idle until the lease
+     * is released (e.g. while files are downloaded from it in the background)
+     */
+    public synchronized void acquireLease() {
+        leases++;
+    }
+
+    public synchronized void releaseLease() {
+        leases = Math.max(0, leases - 1);
+    }
+
+    /**
+     * @return true if some background work still uses the slave
+     */
+    public synchronized boolean isLeased() {
+        return leases > 0;
+    }
+
     /**
      * terminates the slave
      */
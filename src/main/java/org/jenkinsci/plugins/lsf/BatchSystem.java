@@ -23,11 +23,16 @@
  */
 package org.jenkinsci.plugins.lsf;
 
-import com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  *
@@ -35,24 +40,66 @@ import java.io.IOException;
  */
 public abstract class BatchSystem {
 
-    protected final AbstractBuild<?, ?> build;
-    protected final Launcher launcher;
+    // reasons why a job ended with errors
+    public static final String EXIT_PREEMPTED = "PREEMPTED";
+    public static final String EXIT_HOST_FAILURE = "HOST_FAILURE";
+    public static final String EXIT_JOB_FAILURE = "JOB_FAILURE";
+
     protected final BuildListener listener;
-    // every file created by the batch system should have this name
-    protected final String COMMUNICATION_FILE;
-    protected final CopyToMasterNotifier copyFileToMaster;
-    protected final String masterWorkingDirectory;
+    // runs the commands in the workspace of the build or through the
+    // connection of the cloud
+    private final CommandRunner commandRunner;
+    // limits the LSF commands of the cloud (null if there is no limit)
+    private CommandRateLimiter rateLimiter;
+    // suspends the queries while the batch system doesn't answer (null if
+    // they are never suspended)
+    private CircuitBreaker circuitBreaker;
+    // how long a command may run before it's killed
+    private int commandTimeoutSeconds = DEFAULT_COMMAND_TIMEOUT_SECONDS;
+    // the job group to which the jobs are submitted (null for none)
+    protected String jobGroup;
+    // the file which must exist before the submitted jobs may start (null
+    // for none)
+    protected String stagingMarker;
+    // what the submitted jobs need from the cluster (null for the defaults
+    // of the batch system)
+    protected ResourceRequirements resourceRequirements;
+    // delays shorter than this are not reported in the console
+    private static final long REPORTED_DELAY_MILLISECONDS = 1000;
+    // progress updates that would wait longer than this are skipped
+    protected static final long PROGRESS_MAX_WAIT_MILLISECONDS = 1000;
+    public static final int DEFAULT_COMMAND_TIMEOUT_SECONDS = 120;
+    // how many times a query is run before its failure is given up on
+    private static final int QUERY_ATTEMPTS = 3;
+    // the delay before the first retry of a query, doubled for every retry
+    private static final long QUERY_RETRY_MILLISECONDS = 2000;
+    // marks the exit status of a query in its output
+    private static final String EXIT_STATUS_MARKER = "LSF-EXIT-STATUS";
+    // exit statuses of a command killed by timeout (with TERM and KILL)
+    private static final String[] TIMED_OUT_STATUSES = {"124", "137"};
+    // files copied by the batch system from the submission host to the
+    // execution host before the job starts (submission host file first)
+    protected final List<String[]> stagedInFiles = new ArrayList<String[]>();
+    // files copied by the batch system from the execution host back to the
+    // submission host after the job ends (submission host file first)
+    protected final List<String[]> stagedOutFiles = new ArrayList<String[]>();
 
     public BatchSystem(AbstractBuild<?, ?> build, Launcher launcher,
             BuildListener listener, String COMMUNICATION_FILE, 
             String masterWorkingDirectory) {
-        this.COMMUNICATION_FILE = COMMUNICATION_FILE;
-        this.copyFileToMaster = new CopyToMasterNotifier(COMMUNICATION_FILE,
-                "", true, masterWorkingDirectory, true);
-        this.build = build;
-        this.launcher = launcher;
+        this(new BuildCommandRunner(build, launcher, COMMUNICATION_FILE,
+                masterWorkingDirectory), listener);
+    }
+
+    /**
+     * @param commandRunner runs the commands of the batch system (in the
+     * workspace of a build, or through the connection of a cloud for the
+     * commands that act on existing jobs, e.g. killJob or getJobStatus)
+     * @param listener where the output of the commands is printed
+     */
+    public BatchSystem(CommandRunner commandRunner, BuildListener listener) {
+        this.commandRunner = commandRunner;
         this.listener = listener;
-        this.masterWorkingDirectory = masterWorkingDirectory;
     }
 
     /**
@@ -70,11 +117,357 @@ public abstract class BatchSystem {
             String queueType) throws InterruptedException, IOException;
 
     /**
-     * @param jobId
-     * @return the job status of the specified job id
+     * makes the batch system read the files of the slave working directory in
+     * place through the shared file system
+     *
+     * @param sharedFileSystem
+     * @param slaveWorkingDirectory
+     */
+    public void setSharedFileSystem(SharedFileSystem sharedFileSystem,
+            String slaveWorkingDirectory) {
+        getBuildCommandRunner().setSharedFileSystem(sharedFileSystem,
+                slaveWorkingDirectory);
+    }
+
+    /**
+     * makes the batch system run its commands in the given session instead
+     * of starting a new shell for each of them
+     *
+     * @param commandSession
+     */
+    public void setCommandSession(CommandSession commandSession) {
+        getBuildCommandRunner().setCommandSession(commandSession);
+    }
+
+    /**
+     * @return the runner of the commands in the workspace of the build
+     * @throws IllegalStateException if the batch system isn't used by a
+     * build
+     */
+    protected BuildCommandRunner getBuildCommandRunner() {
+        if (!(commandRunner instanceof BuildCommandRunner)) {
+            throw new IllegalStateException("The batch system isn't used by "
+                    + "a build");
+        }
+        return (BuildCommandRunner) commandRunner;
+    }
+
+    /**
+     * makes the batch system submit its jobs to the given job group
+     *
+     * @param jobGroup
+     */
+    public void setJobGroup(String jobGroup) {
+        this.jobGroup = jobGroup;
+    }
+
+    /**
+     * @return the job group to which the jobs are submitted (null for none)
+     */
+    public String getJobGroup() {
+        return jobGroup;
+    }
+
+    /**
+     * makes the batch system hold its jobs back until the given file exists
+     *
+     * @param stagingMarker absolute path of the file or null for none
+     */
+    public void setStagingMarker(String stagingMarker) {
+        this.stagingMarker = stagingMarker;
+    }
+
+    /**
+     * makes the batch system submit its jobs with the given requirements
+     *
+     * @param resourceRequirements
+     */
+    public void setResourceRequirements(
+            ResourceRequirements resourceRequirements) {
+        this.resourceRequirements = resourceRequirements;
+    }
+
+    /**
+     * makes the batch system run its commands in the given directory instead
+     * of the workspace (e.g. for a job that was staged before the build
+     * started)
+     *
+     * @param commandDirectory
+     */
+    public void setCommandDirectory(String commandDirectory) {
+        commandRunner.setCommandDirectory(commandDirectory);
+    }
+
+    /**
+     * makes the batch system wait for the permission of the limiter before
+     * running its commands
+     *
+     * @param rateLimiter
+     */
+    public void setRateLimiter(CommandRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * makes the batch system suspend its queries while the breaker is open
+     *
+     * @param circuitBreaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return true if the queries are suspended because the batch system
+     * doesn't answer
+     */
+    public boolean isUnhealthy() {
+        return circuitBreaker != null && circuitBreaker.isOpen();
+    }
+
+    /**
+     * @param commandTimeoutSeconds how long a command may run before it's
+     * killed (0 for the default)
+     */
+    public void setCommandTimeoutSeconds(int commandTimeoutSeconds) {
+        this.commandTimeoutSeconds = commandTimeoutSeconds > 0
+                ? commandTimeoutSeconds : DEFAULT_COMMAND_TIMEOUT_SECONDS;
+    }
+
+    /**
+     * @param command
+     * @return the command which is killed if it runs past the deadline
+     */
+    protected String withDeadline(String command) {
+        return "timeout -k 10 " + commandTimeoutSeconds + " bash -c '"
+                + command.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * runs a query of the batch system (a command that changes nothing, so
+     * it is safe to run again) with the deadline, retrying it with a
+     * jittered exponential backoff if it times out or gets no reply
+     *
+     * @param command
+     * @return the standard output of the command
+     * @throws InterruptedException
+     * @throws IOException if every attempt failed or the queries are
+     * suspended by the circuit breaker
+     */
+    public String runQuery(String command)
+            throws InterruptedException, IOException {
+        return runQuery(command, null);
+    }
+
+    /**
+     * runs a query of the batch system like runQuery, but a query that exits
+     * with a non-zero status fails (and is run again) unless its output says
+     * that the queried job doesn't exist
+     *
+     * @param command
+     * @param notFound matches the output (standard and error) of the failed
+     * query when the job doesn't exist (null if the exit status of the query
+     * is ignored)
+     * @return the standard and error output of the command
+     * @throws InterruptedException
+     * @throws JobNotFoundException if the batch system doesn't know the job
+     * @throws IOException if every attempt failed or the queries are
+     * suspended by the circuit breaker
+     */
+    public String runQuery(String command, Pattern notFound)
+            throws InterruptedException, IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < QUERY_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                // jittered so that the builds don't retry all at once
+                long backoff = QUERY_RETRY_MILLISECONDS << (attempt - 1);
+                Thread.sleep(backoff / 2 + (long) (Math.random() * backoff));
+            }
+            if (circuitBreaker != null && !circuitBreaker.allowQuery()) {
+                throw new IOException("The queries are suspended because "
+                        + "the batch system doesn't answer");
+            }
+            try {
+                String[] reply = runWithExitStatus(notFound == null ? command
+                        : command + " 2>&1");
+                if (notFound != null && !reply[1].equals("0")
+                        && !notFound.matcher(reply[0]).find()) {
+                    // the batch system (or the connection to it) failed
+                    throw new IOException("Exit status " + reply[1] + " of "
+                            + command + ": " + reply[0].trim());
+                }
+                if (circuitBreaker != null) {
+                    circuitBreaker.succeeded();
+                }
+                if (notFound != null && !reply[1].equals("0")) {
+                    throw new JobNotFoundException(reply[0].trim());
+                }
+                return reply[0];
+            } catch (JobNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+                if (circuitBreaker != null) {
+                    circuitBreaker.failed();
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * runs a command of the batch system that changes something (so it is
+     * never run again) with the deadline
+     *
+     * @param command
+     * @return the standard and error output of the command
+     * @throws InterruptedException
+     * @throws IOException if the command failed, e.g. the batch system
+     * refused it
+     */
+    public String runControl(String command)
+            throws InterruptedException, IOException {
+        String[] reply = runWithExitStatus(command + " 2>&1");
+        if (!reply[1].equals("0")) {
+            throw new IOException("Exit status " + reply[1] + " of "
+                    + command + ": " + reply[0].trim());
+        }
+        return reply[0];
+    }
+
+    /**
+     * runs the command with the deadline and reads its exit status from a
+     * marker line after its output
+     *
+     * @return the output and the exit status of the command
+     * @throws IOException if the command got no reply or timed out
+     */
+    private String[] runWithExitStatus(String command)
+            throws InterruptedException, IOException {
+        String output = runCommandForOutput(withDeadline(command)
+                + "; printf '\\n%s %s\\n' " + EXIT_STATUS_MARKER + " $?");
+        int marker = output.lastIndexOf("\n" + EXIT_STATUS_MARKER + " ");
+        if (marker < 0) {
+            throw new IOException("No reply to: " + command);
+        }
+        String exitStatus = output.substring(marker
+                + EXIT_STATUS_MARKER.length() + 2).trim();
+        if (Arrays.asList(TIMED_OUT_STATUSES).contains(exitStatus)) {
+            throw new IOException("Timed out after " + commandTimeoutSeconds
+                    + " seconds: " + command);
+        }
+        return new String[]{output.substring(0, marker), exitStatus};
+    }
+
+    /**
+     * records that a query got a reply which couldn't be understood (the
+     * batch system may be answering with errors)
+     */
+    protected void recordUnexpectedReply() {
+        if (circuitBreaker != null) {
+            circuitBreaker.failed();
+        }
+    }
+
+    /**
+     * waits until the batch system command may be run
+     *
+     * @param priority how urgent the command is
+     * @return false if the command should be skipped because the batch
+     * system is too busy (only for progress updates)
+     * @throws InterruptedException
+     */
+    protected boolean acquirePermit(CommandRateLimiter.Priority priority)
+            throws InterruptedException {
+        if (rateLimiter == null) {
+            return true;
+        }
+        long delay = rateLimiter.acquire(priority,
+                priority == CommandRateLimiter.Priority.PROGRESS
+                        ? PROGRESS_MAX_WAIT_MILLISECONDS : Long.MAX_VALUE);
+        if (delay < 0) {
+            listener.getLogger().println("The batch system is busy ("
+                    + rateLimiter.getQueueDepth() + " commands waiting), "
+                    + "the progress update is deferred.");
+            return false;
+        }
+        if (delay >= REPORTED_DELAY_MILLISECONDS) {
+            listener.getLogger().println("Command delayed by " + delay
+                    + " ms by the rate limit of the cloud ("
+                    + rateLimiter.getQueueDepth() + " commands waiting).");
+        }
+        return true;
+    }
+
+    /**
+     * runs the shell command in the workspace of the build on the slave (or
+     * through the connection of the cloud)
+     *
+     * @param command
+     * @param listener where the output of the command is printed
+     * @throws InterruptedException
+     */
+    public void runCommand(String command, TaskListener listener)
+            throws InterruptedException {
+        commandRunner.run(command, listener);
+    }
+
+    /**
+     * runs the shell command in the workspace of the build on the slave (or
+     * through the connection of the cloud)
+     *
+     * @param command
+     * @return the standard output of the command
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public String runCommandForOutput(String command)
+            throws InterruptedException, IOException {
+        return commandRunner.runForOutput(command);
+    }
+
+    /**
+     * @return the contents of the communication file in the slave
      * @throws IOException
      * @throws InterruptedException
      */
+    public String readCommunicationFile()
+            throws IOException, InterruptedException {
+        return getBuildCommandRunner().readCommunicationFile();
+    }
+
+    /**
+     * makes the batch system copy the file to the execution host before the
+     * job which is submitted next starts
+     *
+     * @param submissionHostFile path of the file on the submission host
+     * @param executionHostFile path of the copy on the execution host
+     */
+    public void stageIn(String submissionHostFile, String executionHostFile) {
+        stagedInFiles.add(new String[]{submissionHostFile, executionHostFile});
+    }
+
+    /**
+     * makes the batch system copy the file back to the submission host after
+     * the job which is submitted next ends
+     *
+     * @param executionHostFile path of the file on the execution host
+     * @param submissionHostFile path of the copy on the submission host
+     */
+    public void stageOut(String executionHostFile, String submissionHostFile) {
+        stagedOutFiles.add(new String[]{submissionHostFile,
+            executionHostFile});
+    }
+
+    /**
+     * @param jobId
+     * @return the job status of the specified job id (the last known one if
+     * the batch system doesn't answer)
+     * @throws JobNotFoundException if the batch system doesn't know the job
+     * @throws IOException if the batch system doesn't answer and the status
+     * of the job isn't known yet
+     * @throws InterruptedException
+     */
     public abstract String getJobStatus(String jobId)
             throws IOException, InterruptedException;
 
@@ -95,22 +488,114 @@ public abstract class BatchSystem {
     public abstract void processStatus(String jobStatus);
 
     /**
-     * prints the error log to the slave console
+     * collects everything about the ended job (final status, exit code,
+     * error log, the rest of the output and resource usage) in a single
+     * command
      *
+     * @param jobId the identifier of the job
+     * @param offset number of lines that should be skipped from the final
+     * output
+     * @return the collected information
      * @throws InterruptedException
+     * @throws IOException
      */
-    public abstract void printErrorLog() throws InterruptedException;
+    public abstract JobHarvest harvest(String jobId, int offset)
+            throws InterruptedException, IOException;
 
     /**
-     * prints the exit code to the slave console
+     * finds out why the job ended with errors
      *
      * @param jobId the identifier of the job
+     * @return one of EXIT_PREEMPTED, EXIT_HOST_FAILURE or EXIT_JOB_FAILURE
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String getExitReason(String jobId)
+            throws InterruptedException, IOException;
+
+    /**
+     * puts a job that ended with errors or is running back to the queue,
+     * reusing the job file and the files that were already sent
+     *
+     * @param jobId the identifier of the job
+     * @throws InterruptedException
+     */
+    public abstract void requeueJob(String jobId) throws InterruptedException;
+
+    /**
+     * @param jobId the identifier of the job
+     * @return why the pending job hasn't been dispatched yet
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String getPendingReasons(String jobId)
+            throws InterruptedException, IOException;
+
+    /**
+     * @param queues
+     * @return the number of pending jobs of every given queue that accepts
+     * and dispatches jobs (the other queues are left out)
      * @throws InterruptedException
      * @throws IOException
      */
-    public abstract void printExitCode(String jobId)
+    public abstract Map<String, Integer> getOpenQueuePendingJobs(
+            List<String> queues) throws InterruptedException, IOException;
+
+    /**
+     * moves a pending job to another queue, keeping its place in the batch
+     * system (the job isn't submitted again)
+     *
+     * @param jobId the identifier of the job
+     * @param queue
+     * @throws InterruptedException
+     * @throws IOException if the batch system refused to move the job
+     */
+    public abstract void switchQueue(String jobId, String queue)
             throws InterruptedException, IOException;
 
+    /**
+     * @param jobId the identifier of the job
+     * @return the CPU time used by the job so far in seconds (negative if the
+     * batch system doesn't know it yet)
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract double getCpuSeconds(String jobId)
+            throws InterruptedException, IOException;
+
+    /**
+     * collects what the batch system knows about a running job (its
+     * processes, resource usage and history) for finding out why it stalled
+     *
+     * @param jobId the identifier of the job
+     * @return the collected information
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String getDiagnostics(String jobId)
+            throws InterruptedException, IOException;
+
+    /**
+     * creates the job group if it doesn't exist and sets how many of its jobs
+     * (including the jobs of its subgroups) may be unfinished at once
+     *
+     * @param group
+     * @param maxJobs 0 for no limit
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract void limitJobGroup(String group, int maxJobs)
+            throws InterruptedException, IOException;
+
+    /**
+     * kills all the jobs of the job group and of its subgroups
+     *
+     * @param group
+     * @throws InterruptedException
+     */
+    public abstract void killJobGroup(String group)
+            throws InterruptedException;
+
     /**
      * creates the job output file of the running job in the slave
      *
@@ -137,29 +622,24 @@ public abstract class BatchSystem {
             throws InterruptedException, IOException;
 
     /**
-     * creates the final job output file of the finished job in the slave
-     *
-     * @param jobId the identifier of the job
-     * @param offset number of lines that should be skipped from the final
-     * output
-     * @throws InterruptedException
-     */
-    public abstract void createFinishedJobOutputFile(String jobId, int offset)
-            throws InterruptedException;
-
-    /**
-     * cleans up the files created by the batch system
      * @param jobId
-     * @throws InterruptedException 
+     * @return the files created by the batch system for the job in the
+     * slave working directory (relative to it)
      */
-    public abstract void cleanUpFiles(String jobId) 
-            throws InterruptedException;
+    public abstract List<String> getJobFiles(String jobId);
+
     /**
      * @param jobStatus the status of the job
      * @return true if the given job status is a running status
      */
     public abstract boolean isRunningStatus(String jobStatus);
 
+    /**
+     * @param jobStatus the status of the job
+     * @return true if the job is waiting in the queue
+     */
+    public abstract boolean isPendingStatus(String jobStatus);
+
     /**
      * @param jobStatus the status of the job
      * @return true if the given job status is an ending state
@@ -177,4 +657,26 @@ public abstract class BatchSystem {
      * @return true if the job completed successfully without errors
      */
     public abstract boolean jobCompletedSuccessfully(String jobStatus);
+
+    /**
+     * Thrown when the batch system answers that it doesn't know the job (it
+     * was never submitted or has already been forgotten), as opposed to the
+     * failures to get an answer.
+     */
+    public static class JobNotFoundException extends IOException {
+
+        public JobNotFoundException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param exitReason the reason returned by getExitReason
+     * @return true if the job failed because of the batch system rather than
+     * the job itself, so running it again may succeed
+     */
+    public boolean isRetryableExitReason(String exitReason) {
+        return exitReason.equals(EXIT_PREEMPTED)
+                || exitReason.equals(EXIT_HOST_FAILURE);
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.TaskListener;
+import hudson.tasks.Shell;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.BuildListenerAdapter;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Runs the commands of the batch system of a build in its workspace on the
+ * slave: in the command session of the build if it has one, otherwise in a
+ * new shell per command, with the output of the command read back through
+ * the communication file.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class BuildCommandRunner extends CommandRunner {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(BuildCommandRunner.class.getName());
+
+    // for hiding the output of copying the communication file
+    private static final BuildListenerAdapter FAKE_LISTENER
+            = new BuildListenerAdapter(TaskListener.NULL);
+
+    private final AbstractBuild<?, ?> build;
+    private final Launcher launcher;
+    // every file created by the batch system should have this name
+    private final String communicationFile;
+    private final CopyToMasterNotifier copyFileToMaster;
+    private final String masterWorkingDirectory;
+    // the file system that master shares with the slave (null if none)
+    private SharedFileSystem sharedFileSystem;
+    // the directory in the slave in which the commands are run
+    private String slaveWorkingDirectory;
+    // the shell in which the commands are run (null if every command is run
+    // in a new shell)
+    private CommandSession commandSession;
+
+    /**
+     * @param build
+     * @param launcher
+     * @param communicationFile
+     * @param masterWorkingDirectory
+     */
+    public BuildCommandRunner(AbstractBuild<?, ?> build, Launcher launcher,
+            String communicationFile, String masterWorkingDirectory) {
+        this.build = build;
+        this.launcher = launcher;
+        this.communicationFile = communicationFile;
+        this.copyFileToMaster = new CopyToMasterNotifier(communicationFile,
+                "", true, masterWorkingDirectory, true);
+        this.masterWorkingDirectory = masterWorkingDirectory;
+    }
+
+    /**
+     * @return the name of the file through which the output of the commands
+     * is read
+     */
+    public String getCommunicationFile() {
+        return communicationFile;
+    }
+
+    /**
+     * makes the communication file read in place through the shared file
+     * system
+     *
+     * @param sharedFileSystem
+     * @param slaveWorkingDirectory
+     */
+    public void setSharedFileSystem(SharedFileSystem sharedFileSystem,
+            String slaveWorkingDirectory) {
+        this.sharedFileSystem = sharedFileSystem;
+        this.slaveWorkingDirectory = slaveWorkingDirectory;
+    }
+
+    /**
+     * makes the commands run in the given session instead of a new shell for
+     * each of them
+     *
+     * @param commandSession
+     */
+    public void setCommandSession(CommandSession commandSession) {
+        this.commandSession = commandSession;
+    }
+
+    @Override
+    public void run(String command, TaskListener listener)
+            throws InterruptedException {
+        CommandSession session = getCommandSession();
+        if (session != null) {
+            try {
+                session.run(inCommandDirectory(command),
+                        listener.getLogger());
+            } catch (IOException e) {
+                // the command may have run already, so it isn't run again
+                // (the next commands get a shell per command)
+                LOGGER.log(Level.WARNING, "Command session of " + build
+                        + " failed, starting a shell per command", e);
+                listener.error(e.getMessage() + ": " + command);
+            }
+            return;
+        }
+        Shell shell = new Shell("#!/bin/bash +x\n"
+                + inCommandDirectory(command));
+        shell.perform(build, launcher, listener instanceof BuildListener
+                ? (BuildListener) listener
+                : new BuildListenerAdapter(listener));
+    }
+
+    @Override
+    public String runForOutput(String command)
+            throws InterruptedException, IOException {
+        CommandSession session = getCommandSession();
+        if (session != null) {
+            try {
+                return session.execute(inCommandDirectory(command));
+            } catch (IOException e) {
+                // the command may have run already (e.g. bsub submitted the
+                // job), so it isn't run again (the next commands get a shell
+                // per command)
+                LOGGER.log(Level.WARNING, "Command session of " + build
+                        + " failed, starting a shell per command", e);
+                throw e;
+            }
+        }
+        run("{ " + command + "\n} > " + communicationFile, FAKE_LISTENER);
+        return readCommunicationFile();
+    }
+
+    /**
+     * @return the session in which the commands are run or null if it is
+     * not available
+     */
+    private CommandSession getCommandSession() {
+        if (commandSession != null && commandSession.isClosed()) {
+            commandSession = null;
+        }
+        return commandSession;
+    }
+
+    /**
+     * @return the contents of the communication file in the slave
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public String readCommunicationFile()
+            throws IOException, InterruptedException {
+        if (sharedFileSystem != null) {
+            return SharedFileSystem.read(sharedFileSystem.toMaster(
+                    slaveWorkingDirectory + "/" + communicationFile));
+        }
+        CommandSession session = getCommandSession();
+        if (session != null) {
+            try {
+                return session.execute(inCommandDirectory("cat "
+                        + communicationFile));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Command session of " + build
+                        + " failed, starting a shell per command", e);
+            }
+        }
+        copyFileToMaster.perform(build, launcher, FAKE_LISTENER);
+        return FileUtils.readFileToString(
+                new File(masterWorkingDirectory + communicationFile));
+    }
+}
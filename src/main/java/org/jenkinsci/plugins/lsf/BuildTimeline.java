@@ -0,0 +1,409 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Util;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import jenkins.model.RunAction2;
+
+/**
+ * The phases of the LSF build steps of a build (how long the plugin spent
+ * provisioning, staging, submitting, waiting in the queue, running...), shown
+ * as a Gantt chart on the build page.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class BuildTimeline implements RunAction2 {
+
+    // phases of the plugin's own work (the job phases are the LSF statuses)
+    public static final String PROVISIONING = "Agent provisioning";
+    public static final String QUEUED_SUBMISSION = "bsub while queued";
+    public static final String WORKING_DIRECTORY = "Working directory probe";
+    public static final String INPUT_STAGING = "Input staging";
+    public static final String SCRIPT_TRANSFER = "Job script transfer";
+    public static final String CHMOD = "chmod";
+    public static final String PACK_WAIT = "Waiting for the pack";
+    public static final String SUBMISSION = "bsub";
+    public static final String OUTPUT_COPY = "Final output copy";
+    public static final String DOWNLOAD = "downloadFiles";
+    public static final String CLEAN_UP = "cleanUpFiles";
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+    // the moves of the jobs to other queues (null in the older builds)
+    private List<QueueSwitch> queueSwitches;
+    // null in the builds recorded before the downloads were tracked
+    private List<Transfer> transfers;
+    // the background work that failed after the build ended (null in the
+    // builds recorded before it was tracked)
+    private List<Failure> failures;
+    private transient Run<?, ?> run;
+
+    /**
+     * ends the current phase and starts the given one
+     *
+     * @param name
+     */
+    public synchronized void start(String name) {
+        end();
+        phases.add(new Phase(name, System.currentTimeMillis()));
+    }
+
+    /**
+     * adds a phase that already ended
+     *
+     * @param name
+     * @param start
+     * @param end
+     */
+    public synchronized void add(String name, long start, long end) {
+        Phase phase = new Phase(name, start);
+        phase.end = end;
+        phases.add(phase);
+    }
+
+    /**
+     * ends the current phase
+     */
+    public synchronized void end() {
+        if (!phases.isEmpty()) {
+            Phase last = phases.get(phases.size() - 1);
+            if (last.end == 0) {
+                last.end = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * @return the name of the current phase or null if no phase is going on
+     */
+    public synchronized String getCurrentPhase() {
+        if (phases.isEmpty() || phases.get(phases.size() - 1).end != 0) {
+            return null;
+        }
+        return phases.get(phases.size() - 1).name;
+    }
+
+    /**
+     * records that a job was moved to another queue
+     *
+     * @param fromQueue
+     * @param toQueue
+     * @param pendingReasons why the job was pending before the move
+     */
+    public synchronized void addQueueSwitch(String fromQueue, String toQueue,
+            String pendingReasons) {
+        if (queueSwitches == null) {
+            queueSwitches = new ArrayList<QueueSwitch>();
+        }
+        queueSwitches.add(new QueueSwitch(System.currentTimeMillis(),
+                fromQueue, toQueue, pendingReasons));
+    }
+
+    public synchronized List<QueueSwitch> getQueueSwitches() {
+        if (queueSwitches == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(
+                new ArrayList<QueueSwitch>(queueSwitches));
+    }
+
+    /**
+     * records how a file was downloaded
+     *
+     * @param file
+     * @param statistics
+     */
+    public synchronized void addTransfer(String file,
+            DeltaDownload.Statistics statistics) {
+        if (transfers == null) {
+            transfers = new ArrayList<Transfer>();
+        }
+        transfers.add(new Transfer(file, statistics.getFileBytes(),
+                statistics.getSentBytes(), statistics.getReusedBytes(),
+                statistics.getMilliseconds()));
+    }
+
+    public synchronized List<Transfer> getTransfers() {
+        if (transfers == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(
+                new ArrayList<Transfer>(transfers));
+    }
+
+    /**
+     * records that a piece of work of the build failed
+     *
+     * @param description what failed (e.g. "download results.dat")
+     * @param message why it failed
+     */
+    public synchronized void addFailure(String description, String message) {
+        if (failures == null) {
+            failures = new ArrayList<Failure>();
+        }
+        failures.add(new Failure(System.currentTimeMillis(), description,
+                message));
+    }
+
+    public synchronized List<Failure> getFailures() {
+        if (failures == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<Failure>(failures));
+    }
+
+    public synchronized List<Phase> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<Phase>(phases));
+    }
+
+    /**
+     * @param name
+     * @return the total time spent in the phases with the given name
+     */
+    public synchronized long getDuration(String name) {
+        long duration = 0;
+        for (Phase phase : phases) {
+            if (phase.name.equals(name)) {
+                duration += phase.getDuration();
+            }
+        }
+        return duration;
+    }
+
+    private long getStart() {
+        long start = Long.MAX_VALUE;
+        for (Phase phase : phases) {
+            start = Math.min(start, phase.start);
+        }
+        return start;
+    }
+
+    private long getEnd() {
+        long end = 0;
+        for (Phase phase : phases) {
+            end = Math.max(end, phase.getEnd());
+        }
+        return end;
+    }
+
+    /**
+     * @param phase
+     * @return where the bar of the phase starts in the chart (percent)
+     */
+    public synchronized double getOffsetPercent(Phase phase) {
+        long total = getEnd() - getStart();
+        return total <= 0 ? 0 : 100.0 * (phase.start - getStart()) / total;
+    }
+
+    /**
+     * @param phase
+     * @return how wide the bar of the phase is in the chart (percent)
+     */
+    public synchronized double getWidthPercent(Phase phase) {
+        long total = getEnd() - getStart();
+        return total <= 0 ? 100 : 100.0 * phase.getDuration() / total;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "LSF Timeline";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "lsfTimeline";
+    }
+
+    /**
+     * A phase of the build and when it started and ended.
+     */
+    public static class Phase {
+
+        private final String name;
+        private final long start;
+        // 0 while the phase is going on
+        private long end;
+
+        public Phase(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return when the phase ended (now if it is still going on)
+         */
+        public long getEnd() {
+            return end == 0 ? System.currentTimeMillis() : end;
+        }
+
+        public long getDuration() {
+            return getEnd() - start;
+        }
+
+        public String getDurationString() {
+            return Util.getTimeSpanString(getDuration());
+        }
+    }
+
+    /**
+     * A move of a pending job to another queue.
+     */
+    public static class QueueSwitch {
+
+        private final long time;
+        private final String fromQueue;
+        private final String toQueue;
+        private final String pendingReasons;
+
+        public QueueSwitch(long time, String fromQueue, String toQueue,
+                String pendingReasons) {
+            this.time = time;
+            this.fromQueue = fromQueue;
+            this.toQueue = toQueue;
+            this.pendingReasons = pendingReasons;
+        }
+
+        public Date getTime() {
+            return new Date(time);
+        }
+
+        public String getFromQueue() {
+            return fromQueue;
+        }
+
+        public String getToQueue() {
+            return toQueue;
+        }
+
+        public String getPendingReasons() {
+            return pendingReasons;
+        }
+    }
+
+    /**
+     * A piece of work of the build which failed.
+     */
+    public static class Failure {
+
+        private final long time;
+        private final String description;
+        private final String message;
+
+        public Failure(long time, String description, String message) {
+            this.time = time;
+            this.description = description;
+            this.message = message;
+        }
+
+        public Date getTime() {
+            return new Date(time);
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * A file downloaded from the slave.
+     */
+    public static class Transfer {
+
+        private final String file;
+        private final long fileBytes;
+        // bytes sent from the slave (with the checksums of the delta)
+        private final long sentBytes;
+        // bytes taken from the previous copy of the file
+        private final long reusedBytes;
+        private final long duration;
+
+        public Transfer(String file, long fileBytes, long sentBytes,
+                long reusedBytes, long duration) {
+            this.file = file;
+            this.fileBytes = fileBytes;
+            this.sentBytes = sentBytes;
+            this.reusedBytes = reusedBytes;
+            this.duration = duration;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getFileBytes() {
+            return fileBytes;
+        }
+
+        public long getSentBytes() {
+            return sentBytes;
+        }
+
+        public long getReusedBytes() {
+            return reusedBytes;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getDurationString() {
+            return Util.getTimeSpanString(duration);
+        }
+    }
+}
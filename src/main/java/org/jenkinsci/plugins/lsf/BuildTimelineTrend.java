@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The time per phase of the LSF build steps across the recent builds of a
+ * project, for telling whether a slower build spent the time in the cluster
+ * or in the plugin.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class BuildTimelineTrend implements Action {
+
+    // how many of the latest builds are shown
+    private static final int MAX_BUILDS = 20;
+
+    private final AbstractProject<?, ?> project;
+
+    public BuildTimelineTrend(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * @return the timelines of the latest builds, newest first
+     */
+    public List<BuildTimeline> getTimelines() {
+        List<BuildTimeline> timelines = new ArrayList<BuildTimeline>();
+        for (AbstractBuild<?, ?> build : project.getBuilds()
+                .limit(MAX_BUILDS)) {
+            BuildTimeline timeline = build.getAction(BuildTimeline.class);
+            if (timeline != null) {
+                timelines.add(timeline);
+            }
+        }
+        return timelines;
+    }
+
+    /**
+     * @param timelines
+     * @return the names of the phases in the given timelines, in the order
+     * in which they first occur
+     */
+    public List<String> getPhaseNames(List<BuildTimeline> timelines) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (BuildTimeline timeline : timelines) {
+            for (BuildTimeline.Phase phase : timeline.getPhases()) {
+                names.add(phase.getName());
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * @param timeline
+     * @param phase
+     * @return the time spent in the phase by the build
+     */
+    public String getDurationString(BuildTimeline timeline, String phase) {
+        long duration = timeline.getDuration(phase);
+        return duration == 0 ? "-" : Util.getTimeSpanString(duration);
+    }
+
+    /**
+     * @param timelines
+     * @param phase
+     * @return the average time spent in the phase by the builds that had it
+     */
+    public String getAverageDurationString(List<BuildTimeline> timelines,
+            String phase) {
+        long total = 0;
+        int builds = 0;
+        for (BuildTimeline timeline : timelines) {
+            long duration = timeline.getDuration(phase);
+            if (duration > 0) {
+                total += duration;
+                builds++;
+            }
+        }
+        return builds == 0 ? "-" : Util.getTimeSpanString(total / builds);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "LSF Phase Trend";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "lsfPhaseTrend";
+    }
+}
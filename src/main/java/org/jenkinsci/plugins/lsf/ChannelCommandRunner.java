@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.TaskListener;
+import java.io.IOException;
+
+/**
+ * Runs the commands of a batch system which isn't used by a build through
+ * the connection to the host of its cloud (only commands that act on
+ * existing jobs or on the cluster, e.g. killJob or getJobStatus).
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ChannelCommandRunner extends CommandRunner {
+
+    private final ClusterChannel channel;
+
+    /**
+     * @param channel
+     */
+    public ChannelCommandRunner(ClusterChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void run(String command, TaskListener listener)
+            throws InterruptedException {
+        try {
+            listener.getLogger().print(channel.execute(
+                    inCommandDirectory(command)));
+        } catch (IOException e) {
+            listener.error(e.getMessage());
+        }
+    }
+
+    @Override
+    public String runForOutput(String command)
+            throws InterruptedException, IOException {
+        return channel.execute(inCommandDirectory(command));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Util;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops the LSF queries of a cloud while LSF is unhealthy (e.g. mbatchd is
+ * overloaded or the login node hangs), so that the builds don't pile up on
+ * commands that won't answer.
+ *
+ * The breaker opens after a number of queries failed in a row. While it is
+ * open no query is run and the builds use the last known status of their
+ * jobs. Once the open period has passed, one query is let through: if it
+ * succeeds the breaker closes, otherwise it stays open for another period.
+ *
+ * There is one breaker per cloud, shared by all of its builds.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(CircuitBreaker.class.getName());
+
+    // how many queries in a row have to fail for the breaker to open
+    private static final int FAILURE_THRESHOLD = 5;
+    // how long the breaker stays open before a query is tried again
+    private static final long OPEN_MILLISECONDS = 60 * 1000;
+
+    private static final Map<String, CircuitBreaker> BREAKERS
+            = new HashMap<String, CircuitBreaker>();
+
+    private final String cloudName;
+    private int consecutiveFailures;
+    // when the breaker was last opened or tried (0 while it is closed)
+    private long openedAt;
+    // statistics
+    private long rejectedQueries;
+    private long openings;
+
+    private CircuitBreaker(String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    /**
+     * @param cloud
+     * @return the breaker of the cloud
+     */
+    public static CircuitBreaker forCloud(BatchCloud cloud) {
+        synchronized (BREAKERS) {
+            CircuitBreaker breaker = BREAKERS.get(cloud.name);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(cloud.name);
+                BREAKERS.put(cloud.name, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * @return true if a query may be run now
+     */
+    public synchronized boolean allowQuery() {
+        if (openedAt == 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - openedAt >= OPEN_MILLISECONDS) {
+            // the other queries wait for the outcome of this one
+            openedAt = now;
+            return true;
+        }
+        rejectedQueries++;
+        return false;
+    }
+
+    /**
+     * records a query that LSF answered
+     */
+    public synchronized void succeeded() {
+        if (openedAt != 0) {
+            LOGGER.log(Level.INFO, "LSF answers again, the queries of cloud "
+                    + "{0} are resumed", cloudName);
+        }
+        consecutiveFailures = 0;
+        openedAt = 0;
+    }
+
+    /**
+     * records a query that timed out or got an unexpected reply
+     */
+    public synchronized void failed() {
+        consecutiveFailures++;
+        if (openedAt != 0) {
+            // the query that was let through failed as well
+            openedAt = System.currentTimeMillis();
+        } else if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            openedAt = System.currentTimeMillis();
+            openings++;
+            LOGGER.log(Level.WARNING, "{0} LSF queries of cloud {1} failed in "
+                    + "a row, the queries are suspended", new Object[]{
+                        consecutiveFailures, cloudName});
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return openedAt != 0;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getRejectedQueries() {
+        return rejectedQueries;
+    }
+
+    public synchronized long getOpenings() {
+        return openings;
+    }
+
+    /**
+     * @return how long ago the breaker was last opened or tried (empty while
+     * it is closed)
+     */
+    public synchronized String getOpenAgeString() {
+        return openedAt == 0 ? "" : Util.getTimeSpanString(
+                System.currentTimeMillis() - openedAt);
+    }
+}
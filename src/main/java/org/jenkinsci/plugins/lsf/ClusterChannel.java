@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+import hudson.util.Secret;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An SSH connection from master to the host of a cloud which is used to run
+ * LSF commands that don't belong to any build (e.g. querying the load of the
+ * cluster). There is one connection per host and user, shared by all the
+ * clouds that use them.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ClusterChannel {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(ClusterChannel.class.getName());
+
+    private static final int CONNECT_TIMEOUT_MILLISECONDS = 30000;
+    private static final long COMMAND_TIMEOUT_MILLISECONDS = 60000;
+
+    private static final Map<String, ClusterChannel> CHANNELS
+            = new HashMap<String, ClusterChannel>();
+
+    private final String hostname;
+    private final int port;
+    private final String username;
+    private Secret password;
+    private Connection connection;
+
+    private ClusterChannel(String hostname, int port, String username,
+            Secret password) {
+        this.hostname = hostname;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * @param cloud
+     * @return the channel to the host of the given cloud
+     */
+    public static ClusterChannel forCloud(BatchCloud cloud) {
+        String key = cloud.getUsername() + "@" + cloud.getHostname() + ":"
+                + cloud.getPort();
+        synchronized (CHANNELS) {
+            ClusterChannel channel = CHANNELS.get(key);
+            if (channel == null) {
+                channel = new ClusterChannel(cloud.getHostname(),
+                        cloud.getPort(), cloud.getUsername(),
+                        Secret.fromString(cloud.getPassword()));
+                CHANNELS.put(key, channel);
+            } else {
+                // the password may have been changed in the configuration
+                channel.setPassword(Secret.fromString(cloud.getPassword()));
+            }
+            return channel;
+        }
+    }
+
+    private synchronized void setPassword(Secret password) {
+        if (!password.equals(this.password)) {
+            this.password = password;
+            disconnect();
+        }
+    }
+
+    /**
+     * runs the command in a login shell (so that the LSF environment is set)
+     *
+     * @param command the shell command
+     * @return the standard output of the command
+     * @throws IOException if the command couldn't be run or didn't finish
+     * successfully in time
+     * @throws InterruptedException
+     */
+    public synchronized String execute(String command)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis()
+                + COMMAND_TIMEOUT_MILLISECONDS;
+        Session session = connect().openSession();
+        try {
+            session.execCommand("bash -l -c '"
+                    + command.replace("'", "'\\''") + "'");
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            // both streams are drained so that the command never blocks on
+            // a full one, and the reads never wait past the deadline
+            while (true) {
+                drain(session.getStdout(), stdout);
+                drain(session.getStderr(), stderr);
+                int condition = session.waitForCondition(
+                        ChannelCondition.STDOUT_DATA
+                        | ChannelCondition.STDERR_DATA
+                        | ChannelCondition.EOF,
+                        remaining(deadline, command));
+                if ((condition & ChannelCondition.TIMEOUT) != 0) {
+                    throw timedOut(command);
+                }
+                if ((condition & (ChannelCondition.STDOUT_DATA
+                        | ChannelCondition.STDERR_DATA)) == 0
+                        && (condition & ChannelCondition.EOF) != 0) {
+                    break;
+                }
+            }
+            int condition = session.waitForCondition(
+                    ChannelCondition.EXIT_STATUS, remaining(deadline, command));
+            if ((condition & ChannelCondition.TIMEOUT) != 0) {
+                throw timedOut(command);
+            }
+            Integer exitStatus = session.getExitStatus();
+            if (exitStatus == null || exitStatus != 0) {
+                throw new IOException("Command failed on " + hostname
+                        + " with exit status " + exitStatus + ": " + command
+                        + "\n" + stderr.toString("UTF-8").trim());
+            }
+            return stdout.toString("UTF-8");
+        } catch (IOException e) {
+            // the connection may be broken, a new one is opened next time
+            disconnect();
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * copies the bytes that can be read without blocking
+     */
+    private static void drain(InputStream in, ByteArrayOutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        int available;
+        while ((available = in.available()) > 0) {
+            int read = in.read(buffer, 0, Math.min(available, buffer.length));
+            if (read < 0) {
+                return;
+            }
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * @return the milliseconds left until the deadline
+     * @throws IOException if the deadline has passed
+     */
+    private long remaining(long deadline, String command)
+            throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw timedOut(command);
+        }
+        return remaining;
+    }
+
+    private IOException timedOut(String command) {
+        // the connection is closed by the caller, which ends the session
+        return new IOException("Command timed out on " + hostname + ": "
+                + command);
+    }
+
+    private Connection connect() throws IOException {
+        if (connection == null) {
+            Connection newConnection = new Connection(hostname, port);
+            newConnection.connect(null, CONNECT_TIMEOUT_MILLISECONDS,
+                    CONNECT_TIMEOUT_MILLISECONDS);
+            if (!newConnection.authenticateWithPassword(username,
+                    Secret.toString(password))) {
+                newConnection.close();
+                throw new IOException("Authentication failed for "
+                        + username + "@" + hostname);
+            }
+            LOGGER.log(Level.FINE, "Connected to {0}", hostname);
+            connection = newConnection;
+        }
+        return connection;
+    }
+
+    private void disconnect() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Util;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The load of an LSF queue and of the cluster hosts and the unfinished jobs
+ * of the cloud's user at some moment, parsed from the output of bqueues,
+ * bhosts and bjobs.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ClusterSnapshot {
+
+    // separates the fields of a job in the bjobs output
+    private static final String JOB_DELIMITER = "|";
+
+    // when the snapshot was taken
+    private final long timestamp;
+    // jobs of the queue waiting for scheduling
+    private final int pendingJobs;
+    // jobs of the queue that are running
+    private final int runningJobs;
+    // job slots that are free on the hosts of the queue that accept jobs
+    private final int freeSlots;
+    // the unfinished jobs of the cloud's user
+    private final List<Job> jobs;
+
+    public ClusterSnapshot(long timestamp, int pendingJobs, int runningJobs,
+            int freeSlots, List<Job> jobs) {
+        this.timestamp = timestamp;
+        this.pendingJobs = pendingJobs;
+        this.runningJobs = runningJobs;
+        this.freeSlots = freeSlots;
+        this.jobs = Collections.unmodifiableList(jobs);
+    }
+
+    /**
+     * takes a snapshot of the given queue through the given channel
+     *
+     * @param channel
+     * @param limiter the limiter of the LSF commands of the cloud
+     * @param queueType
+     * @param withLoad if false, only the jobs are queried (the load is 0)
+     * @return the snapshot
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static ClusterSnapshot take(ClusterChannel channel,
+            CommandRateLimiter limiter, String queueType, boolean withLoad)
+            throws IOException, InterruptedException {
+        int[] queueLoad = {0, 0};
+        int freeSlots = 0;
+        if (withLoad) {
+            limiter.acquire(CommandRateLimiter.Priority.STATUS);
+            String queues = channel.execute("bqueues " + queueType);
+            limiter.acquire(CommandRateLimiter.Priority.STATUS);
+            // the free slots of other queues' hosts don't run the jobs
+            String queueHosts = parseQueueHosts(channel.execute(
+                    "bqueues -l " + queueType));
+            limiter.acquire(CommandRateLimiter.Priority.STATUS);
+            String hosts = channel.execute("bhosts " + queueHosts);
+            queueLoad = parseQueue(queues, queueType);
+            freeSlots = parseFreeSlots(hosts);
+        }
+        limiter.acquire(CommandRateLimiter.Priority.STATUS);
+        // bjobs fails when the user has no unfinished jobs
+        String jobs = channel.execute("bjobs -noheader -o \"jobid stat queue "
+                + "exec_host job_group pend_reason delimiter='" + JOB_DELIMITER
+                + "'\" 2>/dev/null || true");
+        return new ClusterSnapshot(System.currentTimeMillis(), queueLoad[0],
+                queueLoad[1], freeSlots, parseJobs(jobs));
+    }
+
+    /**
+     * @param output output of bjobs -o "jobid stat queue exec_host
+     * job_group pend_reason"
+     * @return the jobs in the output
+     */
+    static List<Job> parseJobs(String output) {
+        List<Job> jobs = new ArrayList<Job>();
+        for (String line : output.split("\n")) {
+            // the pending reason is last, it may contain the delimiter
+            String[] fields = line.trim().split("\\" + JOB_DELIMITER, 6);
+            if (fields.length < 5 || !fields[0].matches("\\d+")) {
+                continue;
+            }
+            jobs.add(new Job(fields[0], fields[1], fields[2],
+                    emptyIfMissing(fields[3]), emptyIfMissing(fields[4]),
+                    fields.length > 5 ? emptyIfMissing(fields[5]) : ""));
+        }
+        return jobs;
+    }
+
+    private static String emptyIfMissing(String field) {
+        // "-" stands for no value
+        return field.trim().equals("-") ? "" : field.trim();
+    }
+
+    /**
+     * @param output output of bqueues
+     * @param queueType
+     * @return the number of pending and running jobs of the queue
+     * @throws IOException if the queue is not in the output
+     */
+    static int[] parseQueue(String output, String queueType)
+            throws IOException {
+        // QUEUE_NAME PRIO STATUS MAX JL/U JL/P JL/H NJOBS PEND RUN SUSP
+        for (String line : output.split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length >= 11 && columns[0].equals(queueType)) {
+                return new int[]{parseCount(columns[8]),
+                    parseCount(columns[9])};
+            }
+        }
+        throw new IOException("Queue " + queueType + " not found in bqueues "
+                + "output");
+    }
+
+    /**
+     * @param output output of bqueues -l for a single queue
+     * @return the hosts and host groups of the queue separated by spaces, or
+     * an empty string if the queue uses all the hosts of the cluster
+     */
+    static String parseQueueHosts(String output) {
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (!line.startsWith("HOSTS:")) {
+                continue;
+            }
+            StringBuilder hosts = new StringBuilder();
+            for (String host : line.substring("HOSTS:".length()).trim()
+                    .split("\\s+")) {
+                // host groups end with "/" and preferences with "+<level>"
+                host = host.replaceAll("\\+\\d*$", "")
+                        .replaceAll("/$", "");
+                if (host.equals("all") || host.equals("others")) {
+                    return "";
+                }
+                // excluded hosts only narrow down "all" or a group
+                if (!host.isEmpty() && !host.startsWith("~")) {
+                    hosts.append(hosts.length() > 0 ? " " : "").append(host);
+                }
+            }
+            return hosts.toString();
+        }
+        // the queue lists no hosts, it uses all of them
+        return "";
+    }
+
+    /**
+     * @param output output of bhosts
+     * @return the number of free job slots on the hosts that accept jobs
+     */
+    static int parseFreeSlots(String output) {
+        // HOST_NAME STATUS JL/U MAX NJOBS RUN SSUSP USUSP RSV
+        int freeSlots = 0;
+        for (String line : output.split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length >= 9 && columns[1].equals("ok")) {
+                freeSlots += Math.max(0, parseCount(columns[3])
+                        - parseCount(columns[4]));
+            }
+        }
+        return freeSlots;
+    }
+
+    private static int parseCount(String column) {
+        try {
+            return Integer.parseInt(column);
+        } catch (NumberFormatException e) {
+            // "-" stands for no limit or no value
+            return 0;
+        }
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getPendingJobs() {
+        return pendingJobs;
+    }
+
+    public int getRunningJobs() {
+        return runningJobs;
+    }
+
+    public int getFreeSlots() {
+        return freeSlots;
+    }
+
+    public List<Job> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @param jobId
+     * @return the job with the given id or null if it isn't unfinished
+     */
+    public Job getJob(String jobId) {
+        for (Job job : jobs) {
+            if (job.getJobId().equals(jobId)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param groups
+     * @return the number of unfinished jobs in every group of the cloud
+     * (sorted by group)
+     */
+    public Map<String, Integer> getJobGroupCounts(JobGroups groups) {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Job job : jobs) {
+            if (groups.contains(job.getJobGroup())) {
+                Integer count = counts.get(job.getJobGroup());
+                counts.put(job.getJobGroup(), count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return how long ago the snapshot was taken
+     */
+    public String getAgeString() {
+        return Util.getTimeSpanString(System.currentTimeMillis() - timestamp);
+    }
+
+    /**
+     * @param maxAgeMilliseconds
+     * @return true if the snapshot is older than the given age
+     */
+    public boolean isOlderThan(long maxAgeMilliseconds) {
+        return System.currentTimeMillis() - timestamp > maxAgeMilliseconds;
+    }
+
+    /**
+     * An unfinished job as shown by bjobs.
+     */
+    public static class Job {
+
+        private final String jobId;
+        private final String status;
+        private final String queue;
+        private final String executionHost;
+        // empty if the job isn't in a job group
+        private final String jobGroup;
+        private final String pendingReason;
+
+        public Job(String jobId, String status, String queue,
+                String executionHost, String jobGroup, String pendingReason) {
+            this.jobId = jobId;
+            this.status = status;
+            this.queue = queue;
+            this.executionHost = executionHost;
+            this.jobGroup = jobGroup;
+            this.pendingReason = pendingReason;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getQueue() {
+            return queue;
+        }
+
+        public String getExecutionHost() {
+            return executionHost;
+        }
+
+        public String getJobGroup() {
+            return jobGroup;
+        }
+
+        public String getPendingReason() {
+            return pendingReason;
+        }
+    }
+}
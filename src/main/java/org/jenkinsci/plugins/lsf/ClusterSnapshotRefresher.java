@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+
+/**
+ * Periodically refreshes the cluster snapshots of the LSF clouds, so that
+ * provisioning decisions and the pages of the clouds never wait for LSF
+ * commands.
+ *
+ * @author Laisvydas Skurevicius
+ */
+@Extension
+public class ClusterSnapshotRefresher extends AsyncPeriodicWork {
+
+    public ClusterSnapshotRefresher() {
+        super("LSF cluster snapshot");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener)
+            throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof BatchCloud) {
+                try {
+                    ((BatchCloud) cloud).refreshSnapshot();
+                } catch (IOException e) {
+                    listener.error("Failed to refresh the snapshot of "
+                            + cloud.name + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits how many LSF commands per second the builds of a cloud run, so that
+ * bursts of builds don't overload mbatchd. The commands wait for their turn
+ * in the order of their priority: submissions and kills first, then status
+ * queries, and progress updates only when nothing more urgent is waiting.
+ *
+ * There is one limiter per cloud, shared by all of its builds.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class CommandRateLimiter {
+
+    /**
+     * How urgent a command is (the most urgent first).
+     */
+    public enum Priority {
+
+        // bsub, bkill, brequeue
+        CONTROL,
+        // bjobs, bhist, bqueues, bhosts
+        STATUS,
+        // bpeek
+        PROGRESS
+    }
+
+    private static final Map<String, CommandRateLimiter> LIMITERS
+            = new HashMap<String, CommandRateLimiter>();
+
+    // 0 means no limit
+    private int commandsPerSecond;
+    // when the next command may be run
+    private long nextPermit;
+    // how many commands of every priority are waiting
+    private final int[] waiting = new int[Priority.values().length];
+    // statistics
+    private long commands;
+    private long delayedCommands;
+    private long deferredCommands;
+    private long totalDelayMilliseconds;
+
+    private CommandRateLimiter(int commandsPerSecond) {
+        this.commandsPerSecond = commandsPerSecond;
+    }
+
+    /**
+     * @param cloud
+     * @return the limiter of the cloud (with its current limit)
+     */
+    public static CommandRateLimiter forCloud(BatchCloud cloud) {
+        synchronized (LIMITERS) {
+            CommandRateLimiter limiter = LIMITERS.get(cloud.name);
+            if (limiter == null) {
+                limiter = new CommandRateLimiter(
+                        cloud.getMaxCommandsPerSecond());
+                LIMITERS.put(cloud.name, limiter);
+            } else {
+                // the limit may have been changed in the configuration
+                limiter.setCommandsPerSecond(cloud.getMaxCommandsPerSecond());
+            }
+            return limiter;
+        }
+    }
+
+    private synchronized void setCommandsPerSecond(int commandsPerSecond) {
+        this.commandsPerSecond = commandsPerSecond;
+        notifyAll();
+    }
+
+    /**
+     * waits until the command may be run
+     *
+     * @param priority
+     * @return how long the command waited in milliseconds
+     * @throws InterruptedException
+     */
+    public long acquire(Priority priority) throws InterruptedException {
+        return acquire(priority, Long.MAX_VALUE);
+    }
+
+    /**
+     * waits until the command may be run, but at most the given time
+     *
+     * @param priority
+     * @param maxWaitMilliseconds
+     * @return how long the command waited in milliseconds or -1 if it
+     * should be deferred because it would wait longer
+     * @throws InterruptedException
+     */
+    public synchronized long acquire(Priority priority,
+            long maxWaitMilliseconds) throws InterruptedException {
+        long arrived = System.currentTimeMillis();
+        waiting[priority.ordinal()]++;
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (commandsPerSecond <= 0) {
+                    return admit(arrived, now);
+                }
+                long interval = 1000 / commandsPerSecond;
+                boolean moreUrgentWaiting = isMoreUrgentWaiting(priority);
+                if (!moreUrgentWaiting && nextPermit <= now) {
+                    nextPermit = now + interval;
+                    return admit(arrived, now);
+                }
+                long wait = moreUrgentWaiting ? Math.max(interval, 1)
+                        : nextPermit - now;
+                if (now - arrived + wait > maxWaitMilliseconds) {
+                    deferredCommands++;
+                    return -1;
+                }
+                wait(Math.max(wait, 1));
+            }
+        } finally {
+            waiting[priority.ordinal()]--;
+            // the others may be waiting for this one to go first
+            notifyAll();
+        }
+    }
+
+    private long admit(long arrived, long now) {
+        commands++;
+        long delay = now - arrived;
+        if (delay > 0) {
+            delayedCommands++;
+            totalDelayMilliseconds += delay;
+        }
+        return delay;
+    }
+
+    private boolean isMoreUrgentWaiting(Priority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how many commands are waiting for their turn now
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (int count : waiting) {
+            depth += count;
+        }
+        return depth;
+    }
+
+    public synchronized int getCommandsPerSecond() {
+        return commandsPerSecond;
+    }
+
+    public synchronized long getCommands() {
+        return commands;
+    }
+
+    public synchronized long getDelayedCommands() {
+        return delayedCommands;
+    }
+
+    public synchronized long getDeferredCommands() {
+        return deferredCommands;
+    }
+
+    /**
+     * @return the average delay added to the commands that had to wait
+     */
+    public synchronized long getAverageDelayMilliseconds() {
+        return delayedCommands == 0 ? 0
+                : totalDelayMilliseconds / delayedCommands;
+    }
+}
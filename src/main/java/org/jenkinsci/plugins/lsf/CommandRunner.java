@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.TaskListener;
+import java.io.IOException;
+
+/**
+ * Runs the shell commands of a batch system where its jobs are submitted:
+ * in the workspace of a build (BuildCommandRunner) or through the
+ * connection of a cloud for the work that belongs to no build
+ * (ChannelCommandRunner).
+ *
+ * @author Laisvydas Skurevicius
+ */
+public abstract class CommandRunner {
+
+    // the directory in which the commands are run instead of the default
+    // one (null for the default)
+    private String commandDirectory;
+
+    /**
+     * makes the commands run in the given directory instead of the default
+     * one (e.g. for a job that was staged before the build started)
+     *
+     * @param commandDirectory
+     */
+    public void setCommandDirectory(String commandDirectory) {
+        this.commandDirectory = commandDirectory;
+    }
+
+    /**
+     * @param command
+     * @return the command which is run in the command directory
+     */
+    protected String inCommandDirectory(String command) {
+        if (commandDirectory == null) {
+            return command;
+        }
+        return "cd \"" + commandDirectory + "\" && {\n" + command + "\n}";
+    }
+
+    /**
+     * runs the shell command, printing its output
+     *
+     * @param command
+     * @param listener where the output of the command is printed
+     * @throws InterruptedException
+     */
+    public abstract void run(String command, TaskListener listener)
+            throws InterruptedException;
+
+    /**
+     * runs the shell command
+     *
+     * @param command
+     * @return the standard output of the command
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String runForOutput(String command)
+            throws InterruptedException, IOException;
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A long-lived login shell in the workspace of the build on the slave, so
+ * that the commands of the batch system are written to a pipe instead of
+ * every one of them forking a new shell which loads the LSF environment
+ * again.
+ *
+ * Every command is followed by a marker line with its exit status, which
+ * tells where its output ends.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class CommandSession {
+
+    private final Proc process;
+    private final OutputStream stdin;
+    private final BufferedReader stdout;
+    // printed after the output of every command (unique per session)
+    private final String marker = "LSF-COMMAND-END-" + UUID.randomUUID();
+    private boolean closed;
+
+    private CommandSession(Proc process) throws IOException {
+        this.process = process;
+        this.stdin = process.getStdin();
+        this.stdout = new BufferedReader(
+                new InputStreamReader(process.getStdout(), "UTF-8"));
+    }
+
+    /**
+     * starts a login shell (so that the LSF environment is set) in the
+     * workspace of the build with the same environment as the build steps
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @return the started session
+     * @throws IOException if the shell couldn't be started
+     * @throws InterruptedException
+     */
+    public static CommandSession start(AbstractBuild<?, ?> build,
+            Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        EnvVars environment = build.getEnvironment(listener);
+        for (Map.Entry<String, String> variable
+                : build.getBuildVariables().entrySet()) {
+            environment.put(variable.getKey(), variable.getValue());
+        }
+        Proc process = launcher.launch().cmds("bash", "-l", "-s")
+                .envs(environment).pwd(build.getWorkspace())
+                .stderr(TaskListener.NULL.getLogger())
+                .writeStdin().readStdout().start();
+        CommandSession session = new CommandSession(process);
+        // waits until the profile is loaded, so that a broken shell is
+        // noticed here rather than by the first command
+        session.execute("true");
+        return session;
+    }
+
+    /**
+     * runs the command and returns its standard output (its error output is
+     * discarded)
+     *
+     * @param command the shell command
+     * @return the standard output of the command
+     * @throws IOException if the session is broken
+     * @throws InterruptedException
+     */
+    public synchronized String execute(String command)
+            throws IOException, InterruptedException {
+        StringBuilder output = new StringBuilder();
+        send(command, "2>/dev/null");
+        receive(output, null);
+        return output.toString();
+    }
+
+    /**
+     * runs the command and prints its standard and error output to the
+     * console
+     *
+     * @param command the shell command
+     * @param console
+     * @return the exit status of the command
+     * @throws IOException if the session is broken
+     * @throws InterruptedException
+     */
+    public synchronized int run(String command, PrintStream console)
+            throws IOException, InterruptedException {
+        send(command, "2>&1");
+        return receive(null, console);
+    }
+
+    private void send(String command, String errorRedirection)
+            throws IOException {
+        if (closed) {
+            throw new IOException("The command session is closed");
+        }
+        // the command mustn't read the commands that follow it from stdin
+        String block = "{\n" + command + "\n} " + errorRedirection
+                + " </dev/null\nprintf '\\n%s %d\\n' " + marker + " $?\n";
+        try {
+            stdin.write(block.getBytes("UTF-8"));
+            stdin.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * reads the output of the last command up to the marker
+     *
+     * @param output where the output is collected (may be null)
+     * @param console where the output is printed (may be null)
+     * @return the exit status of the command
+     */
+    private int receive(StringBuilder output, PrintStream console)
+            throws IOException, InterruptedException {
+        // held back by one line, because the line before the marker is the
+        // newline printed in front of it
+        String previous = null;
+        try {
+            String line;
+            while ((line = stdout.readLine()) != null) {
+                if (line.startsWith(marker + " ")) {
+                    if (previous != null && !previous.isEmpty()) {
+                        // the last line of the output had no newline
+                        emit(previous, false, output, console);
+                    }
+                    return Integer.parseInt(
+                            line.substring(marker.length() + 1).trim());
+                }
+                if (previous != null) {
+                    emit(previous, true, output, console);
+                }
+                previous = line;
+            }
+        } catch (InterruptedIOException e) {
+            // the rest of the output can't be told apart from the next one
+            close();
+            throw new InterruptedException(e.getMessage());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        close();
+        throw new IOException("The command session ended unexpectedly");
+    }
+
+    private static void emit(String line, boolean newLine,
+            StringBuilder output, PrintStream console) {
+        if (output != null) {
+            output.append(line);
+            if (newLine) {
+                output.append('\n');
+            }
+        }
+        if (console != null) {
+            console.println(line);
+        }
+    }
+
+    /**
+     * ends the shell
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            stdin.close();
+            process.kill();
+        } catch (IOException e) {
+            // the shell is already gone
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads a file from the slave by sending only the parts that differ
+ * from an older copy of it on master (the basis, e.g. the copy downloaded by
+ * the previous build), the way rsync does.
+ *
+ * Master splits the basis into blocks and sends the rolling (weak) and MD5
+ * (strong) checksums of the blocks to the slave. The slave slides a window
+ * over its file: where the window matches a block of the basis only the
+ * number of the block is sent back, the other bytes are sent as they are.
+ * Master then rebuilds the file from the basis and the sent bytes and
+ * checks it against the MD5 of the whole file on the slave.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class DeltaDownload {
+
+    private static final int MIN_BLOCK_SIZE = 64 * 1024;
+    // the basis is split into at most about this many blocks
+    private static final int MAX_BLOCKS = 100000;
+    // changed bytes beyond this are sent with a whole copy instead of in
+    // memory with the delta
+    private static final long MAX_LITERAL_BYTES = 64L * 1024 * 1024;
+
+    private DeltaDownload() {
+    }
+
+    /**
+     * downloads the file, with the delta if the basis exists and with a
+     * whole copy otherwise
+     *
+     * @param source the file on the slave
+     * @param basis the older copy on master
+     * @param destination where the file is downloaded (may be the basis)
+     * @return the statistics of the download
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static Statistics download(FilePath source, File basis,
+            File destination) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        if (basis == null || !basis.isFile()) {
+            source.copyTo(new FilePath(destination));
+            long size = destination.length();
+            return new Statistics(size, size, 0,
+                    System.currentTimeMillis() - start);
+        }
+        Signature signature = Signature.of(basis);
+        Delta delta = source.act(new DeltaScanner(signature));
+        if (delta == null) {
+            // too much has changed for the delta to pay off
+            source.copyTo(new FilePath(destination));
+            long size = destination.length();
+            return new Statistics(size, size, 0,
+                    System.currentTimeMillis() - start);
+        }
+        File rebuilt = new File(destination.getPath() + ".delta");
+        try {
+            rebuild(basis, signature.blockSize, delta, rebuilt);
+            if (!destination.delete() && destination.exists()
+                    || !rebuilt.renameTo(destination)) {
+                throw new IOException("Failed to replace " + destination);
+            }
+        } finally {
+            rebuilt.delete();
+        }
+        return new Statistics(delta.size, delta.literalBytes
+                + signature.getSize(), delta.copiedBytes,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * writes the file described by the delta
+     */
+    private static void rebuild(File basis, int blockSize, Delta delta,
+            File target) throws IOException {
+        MessageDigest digest = newDigest();
+        RandomAccessFile in = new RandomAccessFile(basis, "r");
+        OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(target));
+        try {
+            byte[] block = new byte[blockSize];
+            for (Segment segment : delta.segments) {
+                if (segment.literal != null) {
+                    out.write(segment.literal);
+                    digest.update(segment.literal);
+                    continue;
+                }
+                for (int i = 0; i < segment.blocks; i++) {
+                    in.seek((long) (segment.firstBlock + i) * blockSize);
+                    in.readFully(block);
+                    out.write(block);
+                    digest.update(block);
+                }
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        if (!Arrays.equals(digest.digest(), delta.digest)) {
+            throw new IOException("The rebuilt file differs from "
+                    + "the file on the slave");
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return the rsync rolling checksum of the bytes
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * The checksums of the whole blocks of the basis (a shorter last block is
+     * always sent as it is).
+     */
+    static class Signature implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int blockSize;
+        private final int[] weak;
+        private final byte[][] strong;
+
+        private Signature(int blockSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        static Signature of(File basis) throws IOException {
+            long length = basis.length();
+            int blockSize = (int) Math.max(MIN_BLOCK_SIZE,
+                    Math.min(Integer.MAX_VALUE / 2, length / MAX_BLOCKS + 1));
+            int blocks = (int) (length / blockSize);
+            int[] weak = new int[blocks];
+            byte[][] strong = new byte[blocks][];
+            MessageDigest digest = newDigest();
+            byte[] block = new byte[blockSize];
+            InputStream in = new BufferedInputStream(
+                    new FileInputStream(basis));
+            try {
+                for (int i = 0; i < blocks; i++) {
+                    readFully(in, block);
+                    weak[i] = weakChecksum(block, 0, blockSize);
+                    strong[i] = digest.digest(block);
+                }
+            } finally {
+                in.close();
+            }
+            return new Signature(blockSize, weak, strong);
+        }
+
+        /**
+         * @return how many bytes the signature takes when it is sent
+         */
+        long getSize() {
+            return weak.length * (4L + 16);
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer)
+            throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * A run of blocks of the basis or of bytes sent as they are.
+     */
+    static class Segment implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int firstBlock;
+        private int blocks;
+        // null for a run of blocks
+        private final byte[] literal;
+
+        Segment(int firstBlock) {
+            this.firstBlock = firstBlock;
+            this.blocks = 1;
+            this.literal = null;
+        }
+
+        Segment(byte[] literal) {
+            this.firstBlock = -1;
+            this.blocks = 0;
+            this.literal = literal;
+        }
+    }
+
+    /**
+     * How the file on the slave is built from the basis.
+     */
+    static class Delta implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Segment> segments = new ArrayList<Segment>();
+        private long size;
+        private long literalBytes;
+        private long copiedBytes;
+        // MD5 of the whole file on the slave
+        private byte[] digest;
+
+        void addBlock(int block, int blockSize) {
+            Segment last = segments.isEmpty() ? null
+                    : segments.get(segments.size() - 1);
+            if (last != null && last.literal == null
+                    && last.firstBlock + last.blocks == block) {
+                last.blocks++;
+            } else {
+                segments.add(new Segment(block));
+            }
+            copiedBytes += blockSize;
+        }
+
+        void addLiteral(ByteArrayOutputStream literal) {
+            if (literal.size() > 0) {
+                segments.add(new Segment(literal.toByteArray()));
+                literalBytes += literal.size();
+                literal.reset();
+            }
+        }
+    }
+
+    /**
+     * Computes the delta of a file on the slave against the signature of
+     * the basis.
+     */
+    static class DeltaScanner implements FilePath.FileCallable<Delta> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Signature signature;
+
+        DeltaScanner(Signature signature) {
+            this.signature = signature;
+        }
+
+        /**
+         * @return the delta or null if too many bytes have changed
+         */
+        @Override
+        public Delta invoke(File file, VirtualChannel channel)
+                throws IOException, InterruptedException {
+            int blockSize = signature.blockSize;
+            Map<Integer, List<Integer>> blocksByWeak
+                    = new HashMap<Integer, List<Integer>>();
+            for (int i = 0; i < signature.weak.length; i++) {
+                List<Integer> blocks = blocksByWeak.get(signature.weak[i]);
+                if (blocks == null) {
+                    blocks = new ArrayList<Integer>(1);
+                    blocksByWeak.put(signature.weak[i], blocks);
+                }
+                blocks.add(i);
+            }
+            Delta delta = new Delta();
+            MessageDigest fileDigest = newDigest();
+            MessageDigest blockDigest = newDigest();
+            ByteArrayOutputStream literal = new ByteArrayOutputStream();
+            // the window is kept twice in a row so that it can be read
+            // without wrapping around
+            byte[] window = new byte[2 * blockSize];
+            int start = 0;
+            int length = 0;
+            int a = 0;
+            int b = 0;
+            InputStream in = new BufferedInputStream(
+                    new FileInputStream(file), 1024 * 1024);
+            try {
+                int next;
+                while ((next = in.read()) >= 0) {
+                    fileDigest.update((byte) next);
+                    delta.size++;
+                    if (length == blockSize) {
+                        // the oldest byte leaves the window
+                        int old = window[start] & 0xff;
+                        literal.write(old);
+                        a -= old;
+                        b -= blockSize * old;
+                        start = (start + 1) % blockSize;
+                        length--;
+                    }
+                    int end = (start + length) % blockSize;
+                    window[end] = (byte) next;
+                    window[end + blockSize] = (byte) next;
+                    length++;
+                    a += next;
+                    b += a;
+                    if (length < blockSize) {
+                        continue;
+                    }
+                    int match = findBlock(blocksByWeak,
+                            (a & 0xffff) | (b << 16), blockDigest, window,
+                            start, blockSize);
+                    if (match >= 0) {
+                        delta.addLiteral(literal);
+                        delta.addBlock(match, blockSize);
+                        start = 0;
+                        length = 0;
+                        a = 0;
+                        b = 0;
+                    } else if (delta.literalBytes + literal.size()
+                            > MAX_LITERAL_BYTES) {
+                        // the changed bytes of the whole file count, not
+                        // only the current run
+                        return null;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            // the bytes left in the window match no block
+            literal.write(window, start, length);
+            if (delta.literalBytes + literal.size() > MAX_LITERAL_BYTES) {
+                return null;
+            }
+            delta.addLiteral(literal);
+            delta.digest = fileDigest.digest();
+            return delta;
+        }
+
+        /**
+         * @return the block of the basis which has the same bytes as the
+         * window or -1 if there is none
+         */
+        private int findBlock(Map<Integer, List<Integer>> blocksByWeak,
+                int weak, MessageDigest blockDigest, byte[] window,
+                int start, int blockSize) {
+            List<Integer> candidates = blocksByWeak.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            blockDigest.reset();
+            blockDigest.update(window, start, blockSize);
+            byte[] strong = blockDigest.digest();
+            for (int block : candidates) {
+                if (Arrays.equals(strong, signature.strong[block])) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * How much of a downloaded file was sent and how much was reused from
+     * the basis.
+     */
+    public static class Statistics {
+
+        private final long fileBytes;
+        private final long sentBytes;
+        private final long reusedBytes;
+        private final long milliseconds;
+
+        public Statistics(long fileBytes, long sentBytes, long reusedBytes,
+                long milliseconds) {
+            this.fileBytes = fileBytes;
+            this.sentBytes = sentBytes;
+            this.reusedBytes = reusedBytes;
+            this.milliseconds = milliseconds;
+        }
+
+        public long getFileBytes() {
+            return fileBytes;
+        }
+
+        public long getSentBytes() {
+            return sentBytes;
+        }
+
+        public long getReusedBytes() {
+            return reusedBytes;
+        }
+
+        public long getMilliseconds() {
+            return milliseconds;
+        }
+    }
+}
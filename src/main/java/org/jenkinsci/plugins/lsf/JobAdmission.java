@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.tasks.Builder;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps the builds with LSF build steps in the Jenkins queue while their
+ * project or their cloud already has as many builds in flight as the job
+ * group limits of the cloud allow, so that no slave is provisioned for a
+ * build whose job would only wait in its job group. A build is in flight
+ * from the moment it leaves the queue until it ends.
+ *
+ * @author Laisvydas Skurevicius
+ */
+@Extension
+public class JobAdmission extends QueueTaskDispatcher {
+
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item) {
+        if (!(item.task instanceof Project)
+                || !hasBatchBuilder((Project<?, ?>) item.task)) {
+            return null;
+        }
+        Project<?, ?> project = (Project<?, ?>) item.task;
+        BatchCloud cloud = BatchCloud.getCloud(project);
+        if (cloud == null || (cloud.getMaxJobsPerProject() <= 0
+                && cloud.getMaxCloudJobs() <= 0)) {
+            return null;
+        }
+        int projectBuilds = 0;
+        int cloudBuilds = 0;
+        for (Object parent : getBuildsInFlight()) {
+            if (parent == project) {
+                projectBuilds++;
+            }
+            if (parent instanceof Project
+                    && hasBatchBuilder((Project<?, ?>) parent)
+                    && BatchCloud.getCloud((Project<?, ?>) parent) == cloud) {
+                cloudBuilds++;
+            }
+        }
+        if (cloud.getMaxJobsPerProject() > 0
+                && projectBuilds >= cloud.getMaxJobsPerProject()) {
+            return new LimitReached(project.getFullDisplayName() + " has "
+                    + projectBuilds + " LSF builds in flight (limit "
+                    + cloud.getMaxJobsPerProject() + ")");
+        }
+        if (cloud.getMaxCloudJobs() > 0
+                && cloudBuilds >= cloud.getMaxCloudJobs()) {
+            return new LimitReached(cloud.getDisplayName() + " has "
+                    + cloudBuilds + " LSF builds in flight (limit "
+                    + cloud.getMaxCloudJobs() + ")");
+        }
+        return null;
+    }
+
+    private static boolean hasBatchBuilder(Project<?, ?> project) {
+        for (Builder builder : project.getBuilders()) {
+            if (builder instanceof BatchBuilder) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the projects of the running builds and of the builds that
+     * are about to start, once per build
+     */
+    private static List<Object> getBuildsInFlight() {
+        List<Object> parents = new ArrayList<Object>();
+        Jenkins jenkins = Jenkins.getInstance();
+        for (Computer computer : jenkins.getComputers()) {
+            for (Executor executor : computer.getExecutors()) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable instanceof Run) {
+                    Job<?, ?> parent = ((Run<?, ?>) executable).getParent();
+                    parents.add(parent);
+                }
+            }
+        }
+        for (Queue.BuildableItem pending
+                : jenkins.getQueue().getPendingItems()) {
+            parents.add(pending.task);
+        }
+        return parents;
+    }
+
+    /**
+     * Why a build is kept in the queue.
+     */
+    private static class LimitReached extends CauseOfBlockage {
+
+        private final String description;
+
+        LimitReached(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return description;
+        }
+    }
+}
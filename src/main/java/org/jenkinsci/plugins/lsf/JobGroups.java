@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The LSF job groups of a cloud: every cloud has its own group
+ * (/jenkins/&lt;cloud&gt;) with a subgroup per project, and LSF keeps the
+ * configured number of unfinished jobs of each of them (the extra jobs stay
+ * pending). The limits are set with bgadd (or bgmod) before the first job of
+ * a group is submitted, and again only when they are changed.
+ *
+ * There is one instance per cloud, shared by all of its builds.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class JobGroups {
+
+    private static final String ROOT_GROUP = "/jenkins";
+
+    private static final Map<String, JobGroups> GROUPS
+            = new HashMap<String, JobGroups>();
+
+    private final String cloudGroup;
+    // the limits that were set on the groups, by group
+    private final Map<String, Integer> appliedLimits
+            = new HashMap<String, Integer>();
+
+    private JobGroups(String cloudName) {
+        this.cloudGroup = ROOT_GROUP + "/" + toGroupName(cloudName);
+    }
+
+    /**
+     * @param cloud
+     * @return the job groups of the cloud
+     */
+    public static JobGroups forCloud(BatchCloud cloud) {
+        synchronized (GROUPS) {
+            JobGroups groups = GROUPS.get(cloud.name);
+            if (groups == null) {
+                groups = new JobGroups(cloud.name);
+                GROUPS.put(cloud.name, groups);
+            }
+            return groups;
+        }
+    }
+
+    /**
+     * @param name
+     * @return the name with the characters that LSF doesn't allow in job
+     * group names (including the separator of the groups) replaced
+     */
+    static String toGroupName(String name) {
+        return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    /**
+     * @return the group of the cloud (the parent of the project groups)
+     */
+    public String getCloudGroup() {
+        return cloudGroup;
+    }
+
+    /**
+     * @param projectName full name of the project
+     * @return the group of the project's jobs
+     */
+    public String getProjectGroup(String projectName) {
+        return cloudGroup + "/" + toGroupName(projectName);
+    }
+
+    /**
+     * @param group
+     * @return true if the group is the cloud group or one of its subgroups
+     */
+    public boolean contains(String group) {
+        return group.equals(cloudGroup) || group.startsWith(cloudGroup + "/");
+    }
+
+    /**
+     * makes sure that the groups of the cloud and of the project have the
+     * configured limits
+     *
+     * @param batchSystem the batch system which runs bgadd
+     * @param cloud
+     * @param projectName full name of the project
+     * @return the group to which the jobs of the project are submitted
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public String prepare(BatchSystem batchSystem, BatchCloud cloud,
+            String projectName) throws InterruptedException, IOException {
+        String projectGroup = getProjectGroup(projectName);
+        // the parent first, so that bgadd of the subgroup finds it
+        applyLimit(batchSystem, cloudGroup, cloud.getMaxCloudJobs());
+        applyLimit(batchSystem, projectGroup, cloud.getMaxJobsPerProject());
+        return projectGroup;
+    }
+
+    private void applyLimit(BatchSystem batchSystem, String group,
+            int maxJobs) throws InterruptedException, IOException {
+        synchronized (appliedLimits) {
+            Integer applied = appliedLimits.get(group);
+            if (applied != null && applied == maxJobs) {
+                return;
+            }
+        }
+        batchSystem.limitJobGroup(group, maxJobs);
+        synchronized (appliedLimits) {
+            appliedLimits.put(group, maxJobs);
+        }
+    }
+}
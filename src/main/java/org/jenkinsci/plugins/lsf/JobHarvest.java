@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+/**
+ * Everything that is collected about a job once it has ended: its final
+ * status, exit code, error log, the rest of its output and its resource
+ * usage.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class JobHarvest {
+
+    private final String status;
+    // null if the job didn't exit with a non-zero exit code
+    private final Integer exitCode;
+    private final String errorLog;
+    // the output that wasn't printed while the job was running
+    private final String output;
+    // empty if the batch system didn't report them
+    private final String cpuTime;
+    private final String maxMemory;
+
+    public JobHarvest(String status, Integer exitCode, String errorLog,
+            String output, String cpuTime, String maxMemory) {
+        this.status = status;
+        this.exitCode = exitCode;
+        this.errorLog = errorLog;
+        this.output = output;
+        this.cpuTime = cpuTime;
+        this.maxMemory = maxMemory;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public String getErrorLog() {
+        return errorLog;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    public String getCpuTime() {
+        return cpuTime;
+    }
+
+    public String getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * @return the resource usage in one line or an empty string if it isn't
+     * known
+     */
+    public String getResourceUsage() {
+        if (cpuTime.isEmpty() && maxMemory.isEmpty()) {
+            return "";
+        }
+        return "CPU time used: " + (cpuTime.isEmpty() ? "unknown" : cpuTime)
+                + ", maximum memory: "
+                + (maxMemory.isEmpty() ? "unknown" : maxMemory) + ".";
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.ParametersAction;
+import hudson.model.listeners.ItemListener;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.model.Jenkins;
+
+/**
+ * Append-only journal of the LSF jobs that are in flight on the master.
+ *
+ * Every record is a single line terminated by a checksum and is forced to disk
+ * before the call returns, so a crash can lose at most the record being
+ * written. The journal is replayed when Jenkins starts so that builds which
+ * were interrupted by a restart can reattach to their LSF jobs instead of
+ * submitting them again.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class JobJournal {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(JobJournal.class.getName());
+
+    // record types
+    private static final String STAGE = "STAGE";
+    private static final String SUBMIT = "SUBMIT";
+    private static final String OFFSET = "OFFSET";
+    private static final String ADOPT = "ADOPT";
+    private static final String END = "END";
+    private static final String SEPARATOR = "\t";
+    // the journal is rewritten with only the live entries after this many
+    // records of finished jobs have accumulated
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static JobJournal instance;
+    // set once Jenkins starts shutting down (the running builds are
+    // interrupted after it)
+    private static volatile boolean shuttingDown = false;
+
+    private final File file;
+    // live entries keyed by the job file name (unique for every submission)
+    private final Map<String, Entry> entries
+            = new LinkedHashMap<String, Entry>();
+    private int deadRecords = 0;
+
+    JobJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the journal of this Jenkins instance
+     */
+    public static synchronized JobJournal get() {
+        if (instance == null) {
+            instance = new JobJournal(new File(Jenkins.getInstance()
+                    .getRootDir(), "lsf-cloud/journal.log"));
+            instance.replay();
+        }
+        return instance;
+    }
+
+    /**
+     * replays the journal on startup and schedules a build for every project
+     * that has an LSF job which was left without a running build
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void reattachInterruptedBuilds() {
+        JobJournal journal = get();
+        for (Entry entry : journal.getOrphans()) {
+            AbstractProject<?, ?> project = entry.getProject();
+            if (project == null) {
+                journal.recordCompletion(entry.key);
+                continue;
+            }
+            journal.scheduleReattach(entry, 0);
+        }
+    }
+
+    /**
+     * schedules a build of the project of the job (with the parameters of the
+     * build that submitted it) which reattaches to the job
+     *
+     * @param entry
+     * @param quietPeriodSeconds how long the build waits in the queue
+     */
+    public void scheduleReattach(Entry entry, int quietPeriodSeconds) {
+        AbstractProject<?, ?> project = entry.getProject();
+        if (project == null) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "Scheduling {0} to reattach to LSF job {1}",
+                new Object[]{project.getFullName(), entry.jobId});
+        List<ParametersAction> parameters = new ArrayList<ParametersAction>();
+        AbstractBuild<?, ?> build = project.getBuildByNumber(entry.buildNumber);
+        if (build != null) {
+            parameters.addAll(build.getActions(ParametersAction.class));
+        }
+        project.scheduleBuild2(quietPeriodSeconds,
+                new ReattachCause(entry.key, entry.jobId), parameters);
+    }
+
+    /**
+     * @return true if Jenkins is shutting down (whether or not it was
+     * quieting down before)
+     */
+    public static boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    /**
+     * Notices the shutdown of Jenkins before the builds are interrupted, so
+     * that they leave their jobs running to be reattached to.
+     */
+    @Extension
+    public static class ShutdownListener extends ItemListener {
+
+        @Override
+        public void onBeforeShutdown() {
+            shuttingDown = true;
+        }
+    }
+
+    /**
+     * records that the inputs of a new job have been staged in the given
+     * directory
+     *
+     * @param key name of the job file
+     * @param build the build that owns the job
+     * @param workingDirectory the directory in which the job is submitted
+     * @param scriptHash digest of the job script
+     */
+    public synchronized void recordStaging(String key,
+            AbstractBuild<?, ?> build, String workingDirectory,
+            String scriptHash) {
+        Entry entry = new Entry(key, build.getProject().getFullName(),
+                build.getNumber(), workingDirectory, scriptHash);
+        entries.put(key, entry);
+        append(STAGE, key, entry.project, String.valueOf(entry.buildNumber),
+                workingDirectory, scriptHash);
+    }
+
+    /**
+     * records the id that the batch system gave to the job
+     *
+     * @param key name of the job file
+     * @param jobId the identifier of the job
+     */
+    public synchronized void recordSubmission(String key, String jobId) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.jobId = jobId;
+            append(SUBMIT, key, jobId);
+        }
+    }
+
+    /**
+     * records how many lines of the job output have already been printed
+     *
+     * @param key name of the job file
+     * @param offset number of printed lines
+     */
+    public synchronized void recordOffset(String key, int offset) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.offset != offset) {
+            entry.offset = offset;
+            append(OFFSET, key, String.valueOf(offset));
+        }
+    }
+
+    /**
+     * records that a new build has taken over the job
+     *
+     * @param key name of the job file
+     * @param build the build that reattached to the job
+     */
+    public synchronized void recordAdoption(String key,
+            AbstractBuild<?, ?> build) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.buildNumber = build.getNumber();
+            append(ADOPT, key, String.valueOf(entry.buildNumber));
+        }
+    }
+
+    /**
+     * removes the job from the journal once nothing is left to reattach to
+     *
+     * @param key name of the job file
+     */
+    public synchronized void recordCompletion(String key) {
+        if (entries.remove(key) != null) {
+            append(END, key);
+            // the STAGE record and all the others of this job are dead now
+            deadRecords++;
+            if (deadRecords >= COMPACTION_THRESHOLD) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * @param key name of the job file (from the cause of the new build)
+     * @param project full name of the project
+     * @param workingDirectory the directory in which the new job would run
+     * @param scriptHash digest of the job script of the new build
+     * @return the submitted job with the given key if its build is no longer
+     * running and it ran the same script of the given project in the same
+     * directory, or null
+     */
+    public synchronized Entry findOrphan(String key, String project,
+            String workingDirectory, String scriptHash) {
+        for (Entry entry : getOrphans()) {
+            if (entry.key.equals(key) && entry.project.equals(project)
+                    && entry.workingDirectory.equals(workingDirectory)
+                    && entry.scriptHash.equals(scriptHash)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return submitted jobs whose builds are no longer running
+     */
+    public synchronized List<Entry> getOrphans() {
+        List<Entry> orphans = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.jobId == null) {
+                continue;
+            }
+            AbstractProject<?, ?> project = entry.getProject();
+            AbstractBuild<?, ?> build = project == null ? null
+                    : project.getBuildByNumber(entry.buildNumber);
+            if (build == null || !build.isBuilding()) {
+                orphans.add(entry);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * @return all the jobs that are currently in the journal
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * reads the journal from disk, skipping records that were torn by a crash
+     */
+    synchronized void replay() {
+        entries.clear();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] record = parse(line);
+                    if (record == null) {
+                        LOGGER.log(Level.WARNING,
+                                "Skipping corrupted LSF journal record: {0}",
+                                line);
+                        continue;
+                    }
+                    apply(record);
+                }
+            } finally {
+                reader.close();
+            }
+            compact();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to replay the LSF job journal "
+                    + file, e);
+        }
+    }
+
+    private void apply(String[] record) {
+        String type = record[0];
+        String key = record[1];
+        Entry entry = entries.get(key);
+        if (type.equals(STAGE) && record.length == 6) {
+            entries.put(key, new Entry(key, record[2],
+                    Integer.parseInt(record[3]), record[4], record[5]));
+        } else if (entry == null) {
+            return;
+        } else if (type.equals(SUBMIT) && record.length == 3) {
+            entry.jobId = record[2];
+        } else if (type.equals(OFFSET) && record.length == 3) {
+            entry.offset = Integer.parseInt(record[2]);
+        } else if (type.equals(ADOPT) && record.length == 3) {
+            entry.buildNumber = Integer.parseInt(record[2]);
+        } else if (type.equals(END)) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * rewrites the journal with only the live entries
+     */
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                for (Entry entry : entries.values()) {
+                    write(out, STAGE, entry.key, entry.project,
+                            String.valueOf(entry.buildNumber),
+                            entry.workingDirectory, entry.scriptHash);
+                    if (entry.jobId != null) {
+                        write(out, SUBMIT, entry.key, entry.jobId);
+                    }
+                    write(out, OFFSET, entry.key,
+                            String.valueOf(entry.offset));
+                }
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            deadRecords = 0;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to compact the LSF job journal "
+                    + file, e);
+        }
+    }
+
+    private void append(String... fields) {
+        try {
+            file.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                write(out, fields);
+                out.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write to the LSF job journal "
+                    + file, e);
+        }
+    }
+
+    private static void write(FileOutputStream out, String... fields)
+            throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (String field : fields) {
+            line.append(field.replace(SEPARATOR, " ")).append(SEPARATOR);
+        }
+        line.append(checksum(line.toString())).append('\n');
+        out.write(line.toString().getBytes("UTF-8"));
+    }
+
+    /**
+     * @param line a line of the journal
+     * @return the fields of the record or null if the checksum doesn't match
+     */
+    private static String[] parse(String line) {
+        int end = line.lastIndexOf(SEPARATOR);
+        if (end < 0) {
+            return null;
+        }
+        String payload = line.substring(0, end + 1);
+        if (!checksum(payload).equals(line.substring(end + 1))) {
+            return null;
+        }
+        String[] record = payload.split(SEPARATOR);
+        if (record.length < 2) {
+            return null;
+        }
+        return record;
+    }
+
+    private static String checksum(String payload) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(payload.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * a job in the journal
+     */
+    public static class Entry {
+
+        private final String key;
+        private final String project;
+        private int buildNumber;
+        private final String workingDirectory;
+        private final String scriptHash;
+        private String jobId;
+        private int offset = 0;
+
+        Entry(String key, String project, int buildNumber,
+                String workingDirectory, String scriptHash) {
+            this.key = key;
+            this.project = project;
+            this.buildNumber = buildNumber;
+            this.workingDirectory = workingDirectory;
+            this.scriptHash = scriptHash;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        public String getProjectName() {
+            return project;
+        }
+
+        public AbstractProject<?, ?> getProject() {
+            return Jenkins.getInstance().getItemByFullName(project,
+                    AbstractProject.class);
+        }
+
+        /**
+         * @return the build that owns the job or null if it doesn't exist
+         */
+        public AbstractBuild<?, ?> getBuild() {
+            AbstractProject<?, ?> owner = getProject();
+            return owner == null ? null : owner.getBuildByNumber(buildNumber);
+        }
+    }
+
+    /**
+     * cause of the builds scheduled to reattach to a running LSF job (only
+     * these builds take the job over)
+     */
+    public static class ReattachCause extends Cause {
+
+        // the journal key of the job (null in builds of older versions)
+        private final String key;
+        private final String jobId;
+
+        public ReattachCause(String key, String jobId) {
+            this.key = key;
+            this.jobId = jobId;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Reattaching to LSF job " + jobId
+                    + " after Jenkins was restarted";
+        }
+    }
+}
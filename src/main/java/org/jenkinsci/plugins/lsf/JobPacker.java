@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the short jobs of the builds of a cloud which arrive within a
+ * short time for the same queue into packs that are submitted to LSF as a
+ * single job, so that every job doesn't pay for its own submission,
+ * scheduling and dispatch.
+ *
+ * The first build that joins a pack is its leader: it waits until the pack
+ * is full or the maximum wait is over, then submits the pack and hands the
+ * job id over to the other members.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class JobPacker {
+
+    private static final Map<String, JobPacker> PACKERS
+            = new HashMap<String, JobPacker>();
+
+    // the packs that can still be joined, keyed by the queue
+    private final Map<String, Pack> openPacks = new HashMap<String, Pack>();
+
+    /**
+     * @param cloud
+     * @return the packer of the cloud
+     */
+    public static JobPacker forCloud(BatchCloud cloud) {
+        synchronized (PACKERS) {
+            JobPacker packer = PACKERS.get(cloud.name);
+            if (packer == null) {
+                packer = new JobPacker();
+                PACKERS.put(cloud.name, packer);
+            }
+            return packer;
+        }
+    }
+
+    /**
+     * adds the job to the open pack of the queue or opens a new pack
+     *
+     * @param queueType
+     * @param workingDirectory the directory in which the job script is
+     * @param jobFileName name of the job script
+     * @param maxSize the maximum number of jobs in a pack
+     * @return the pack that the job joined
+     */
+    public synchronized Pack join(String queueType, String workingDirectory,
+            String jobFileName, int maxSize) {
+        Pack pack = openPacks.get(queueType);
+        if (pack == null || !pack.add(workingDirectory, jobFileName)) {
+            pack = new Pack(this, queueType, maxSize);
+            pack.add(workingDirectory, jobFileName);
+            openPacks.put(queueType, pack);
+        }
+        return pack;
+    }
+
+    private synchronized void remove(Pack pack) {
+        if (openPacks.get(pack.queueType) == pack) {
+            openPacks.remove(pack.queueType);
+        }
+    }
+
+    /**
+     * Jobs which are submitted to LSF together.
+     */
+    public static class Pack {
+
+        private final JobPacker packer;
+        private final String queueType;
+        private final int maxSize;
+        // the directory and the job script name of every member
+        private final List<String[]> members = new ArrayList<String[]>();
+        private boolean closed;
+        // set by the leader once the pack is submitted
+        private String jobId;
+        // set by the leader if the pack couldn't be submitted
+        private String failure;
+
+        private Pack(JobPacker packer, String queueType, int maxSize) {
+            this.packer = packer;
+            this.queueType = queueType;
+            this.maxSize = maxSize;
+        }
+
+        private synchronized boolean add(String workingDirectory,
+                String jobFileName) {
+            if (closed || members.size() >= maxSize) {
+                return false;
+            }
+            members.add(new String[]{workingDirectory, jobFileName});
+            if (members.size() >= maxSize) {
+                notifyAll();
+            }
+            return true;
+        }
+
+        /**
+         * takes a member that gave up waiting out of the pack unless the pack
+         * is already closed
+         *
+         * @param jobFileName
+         * @return true if the job was taken out, false if it is submitted
+         * with the pack
+         */
+        public synchronized boolean leave(String jobFileName) {
+            if (closed) {
+                return false;
+            }
+            for (int i = 1; i < members.size(); i++) {
+                if (members.get(i)[1].equals(jobFileName)) {
+                    members.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param jobFileName
+         * @return true if the job is the leader of the pack (submits it)
+         */
+        public synchronized boolean isLeader(String jobFileName) {
+            return members.get(0)[1].equals(jobFileName);
+        }
+
+        /**
+         * waits until the pack is full or the maximum wait is over and closes
+         * it (called by the leader)
+         *
+         * @param maxWaitMilliseconds
+         * @return the directory and the job script name of every member
+         * @throws InterruptedException
+         */
+        public List<String[]> close(long maxWaitMilliseconds)
+                throws InterruptedException {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis()
+                        + maxWaitMilliseconds;
+                try {
+                    while (members.size() < maxSize) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        wait(wait);
+                    }
+                } finally {
+                    closed = true;
+                }
+            }
+            packer.remove(this);
+            synchronized (this) {
+                return Collections.unmodifiableList(
+                        new ArrayList<String[]>(members));
+            }
+        }
+
+        /**
+         * hands the id of the submitted pack over to the members
+         *
+         * @param jobId
+         */
+        public synchronized void submitted(String jobId) {
+            this.jobId = jobId;
+            notifyAll();
+        }
+
+        /**
+         * tells the members that the pack won't be submitted
+         *
+         * @param reason
+         */
+        public synchronized void failed(String reason) {
+            this.failure = reason;
+            notifyAll();
+        }
+
+        /**
+         * waits until the leader has submitted the pack
+         *
+         * @param maxWaitMilliseconds
+         * @return the job id of the pack or null if it wasn't submitted in
+         * time
+         * @throws IOException if the pack wasn't submitted
+         * @throws InterruptedException
+         */
+        public synchronized String awaitJobId(long maxWaitMilliseconds)
+                throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + maxWaitMilliseconds;
+            while (jobId == null && failure == null) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return null;
+                }
+                wait(wait);
+            }
+            if (jobId == null) {
+                throw new IOException(failure);
+            }
+            return jobId;
+        }
+
+        public synchronized int getSize() {
+            return members.size();
+        }
+    }
+}
@@ -27,15 +27,19 @@ import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.TaskListener;
-import hudson.tasks.Shell;
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import jenkins.util.BuildListenerAdapter;
-import org.apache.commons.io.FileUtils;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jenkinsci.plugins.lsf.CommandRateLimiter.Priority;
 
 /**
  *
@@ -45,13 +49,38 @@ public class LSF extends BatchSystem {
 
     private static final Set ENDING_STATES = new HashSet();
 
+    // the last status of every job that LSF answered with, used while LSF
+    // doesn't answer
+    private final Map<String, String> lastStatuses
+            = new HashMap<String, String>();
+
     static {
         ENDING_STATES.add("DONE");
         ENDING_STATES.add("EXIT");
     }
 
-    private static final BuildListenerAdapter fakeListener
-            = new BuildListenerAdapter(TaskListener.NULL);
+    // termination reasons of jobs that were killed because of their host
+    // (not TERM_LOAD or TERM_WINDOW, the load thresholds and run windows of
+    // the queue would end a requeued job the same way)
+    private static final String[] HOST_FAILURE_REASONS = {"TERM_ZOMBIE",
+        "TERM_REMOVE_HUNG_JOB", "TERM_RMS",
+        "Unable to reach the execution host", "host failure"};
+
+    // separates the parts of the harvest output
+    private static final String HARVEST_SEPARATOR = "LSF-HARVEST-SEPARATOR";
+    // what is read from bjobs -l
+    private static final Pattern STATUS = Pattern.compile("Status <(\\w+)>");
+    // what bjobs answers for a job that LSF doesn't know (any more)
+    private static final Pattern JOB_NOT_FOUND
+            = Pattern.compile("is not found");
+    private static final Pattern EXIT_CODE
+            = Pattern.compile("Exited with exit code (\\d+)");
+    private static final Pattern CPU_TIME
+            = Pattern.compile("The CPU time used is ([\\d.]+ seconds)");
+    private static final Pattern CPU_SECONDS
+            = Pattern.compile("The CPU time used is ([\\d.]+) seconds");
+    private static final Pattern MAX_MEMORY
+            = Pattern.compile("MAX MEM: ([^;]+);");
 
     public LSF(AbstractBuild<?, ?> build, Launcher launcher,
             BuildListener listener, String COMMUNICATION_FILE, 
@@ -60,6 +89,10 @@ public class LSF extends BatchSystem {
                 masterWorkingDirectory);
     }
 
+    public LSF(ClusterChannel channel, BuildListener listener) {
+        super(new ChannelCommandRunner(channel), listener);
+    }
+
     @Override
     public String submitJob(String jobFileName, boolean sendEmail,
             String queueType) throws InterruptedException, IOException {
@@ -69,39 +102,131 @@ public class LSF extends BatchSystem {
         if (!sendEmail) {
             emailConfiguration = "LSB_JOB_REPORT_MAIL=N ";
         }
+        // copies the staged files with LSF file transfer
+        String fileTransfers = "";
+        for (String[] file : stagedInFiles) {
+            fileTransfers = fileTransfers + "-f \"" + file[0] + " > "
+                    + file[1] + "\" ";
+        }
+        for (String[] file : stagedOutFiles) {
+            fileTransfers = fileTransfers + "-f \"" + file[0] + " < "
+                    + file[1] + "\" ";
+        }
         // submits the job to LSF
-        Shell shell = new Shell("#!/bin/bash +x\n" + emailConfiguration
-                + "bsub -q " + queueType + " -e \"errorLog\" "
-                + jobFileName + " | tee " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, listener);
+        acquirePermit(Priority.CONTROL);
+        // not retried, the job may have been submitted before the deadline
+        String submission = runCommandForOutput(withDeadline(
+                emailConfiguration + "bsub -q " + queueType
+                + " -e \"errorLog\" "
+                + (jobGroup != null ? "-g \"" + jobGroup + "\" " : "")
+                // the pre-execution command puts the job back to the queue
+                // until its files are staged
+                + (stagingMarker != null ? "-E \"test -f " + stagingMarker
+                        + "\" " : "")
+                + getResourceOptions() + fileTransfers + jobFileName));
+        listener.getLogger().print(submission);
 
         // stores the job id
-        copyFileToMaster.perform(build, launcher, fakeListener);
         BufferedReader fileReader = new BufferedReader(
-                new FileReader(masterWorkingDirectory + COMMUNICATION_FILE));
+                new StringReader(submission));
         String jobId = fileReader.readLine();
+        if (jobId == null || jobId.indexOf('<') < 0
+                || jobId.indexOf('>') < jobId.indexOf('<')) {
+            throw new IOException("Unexpected reply of bsub: " + submission);
+        }
         jobId = jobId.substring(jobId.indexOf('<', 0)
                 + 1, jobId.indexOf('>', 0));
         return jobId;
     }
 
+    /**
+     * @return the bsub options of the resource requirements of the job
+     * @throws IOException if the requirements are malformed
+     */
+    private String getResourceOptions() throws IOException {
+        if (resourceRequirements == null) {
+            return "";
+        }
+        resourceRequirements.validate();
+        String options = "";
+        if (resourceRequirements.getSlots() > 0) {
+            options = options + "-n " + resourceRequirements.getSlots() + " ";
+        }
+        // the sections of the resource requirement string
+        String requirement = "";
+        if (resourceRequirements.getMemoryMB() > 0) {
+            requirement = requirement + "rusage[mem="
+                    + resourceRequirements.getMemoryMB() + "] ";
+        }
+        if (!resourceRequirements.getSpan().isEmpty()) {
+            requirement = requirement + "span["
+                    + resourceRequirements.getSpan() + "] ";
+        }
+        if (!resourceRequirements.getAffinity().isEmpty()) {
+            requirement = requirement + "affinity["
+                    + resourceRequirements.getAffinity() + "] ";
+        }
+        if (!requirement.isEmpty()) {
+            options = options + "-R \"" + requirement.trim() + "\" ";
+        }
+        if (resourceRequirements.isExclusive()) {
+            options = options + "-x ";
+        }
+        if (!resourceRequirements.getHosts().isEmpty()) {
+            options = options + "-m \"" + resourceRequirements.getHosts()
+                    + "\" ";
+        }
+        return options;
+    }
+
     @Override
     public String getJobStatus(String jobId)
             throws IOException, InterruptedException {
-        Shell shell = new Shell("#!/bin/bash +x\n bjobs " + jobId + " > "
-                + COMMUNICATION_FILE);
-        shell.perform(build, launcher, fakeListener);
-        copyFileToMaster.perform(build, launcher, fakeListener);
-        BufferedReader fileReader = new BufferedReader(
-                new FileReader(masterWorkingDirectory + COMMUNICATION_FILE));
-        fileReader.readLine();
-        return fileReader.readLine().trim().split(" ")[2];
+        acquirePermit(Priority.STATUS);
+        String reply;
+        try {
+            reply = runQuery("bjobs " + jobId, JOB_NOT_FOUND);
+        } catch (JobNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            // LSF or the connection to it failed, the job may still run
+            return getLastStatus(jobId, e);
+        }
+        // the header and the line of the job:
+        // JOBID USER STAT QUEUE FROM_HOST EXEC_HOST JOB_NAME SUBMIT_TIME
+        String[] lines = reply.trim().split("\\r?\\n");
+        String[] columns = lines.length < 2 ? new String[0]
+                : lines[1].trim().split("\\s+");
+        if (columns.length < 3 || !columns[0].equals(jobId)) {
+            recordUnexpectedReply();
+            return getLastStatus(jobId, new IOException("Unexpected reply of "
+                    + "bjobs for job " + jobId + ": " + reply.trim()));
+        }
+        lastStatuses.put(jobId, columns[2]);
+        return columns[2];
+    }
+
+    /**
+     * @param jobId
+     * @param failure why the status couldn't be queried
+     * @return the last known status of the job
+     * @throws IOException the failure if the status of the job isn't known
+     */
+    private String getLastStatus(String jobId, IOException failure)
+            throws IOException {
+        String status = lastStatuses.get(jobId);
+        if (status == null) {
+            throw failure;
+        }
+        listener.getLogger().println(failure.getMessage() + ", using the "
+                + "last known status of job " + jobId + ".");
+        return status;
     }
 
     @Override
     public void killJob(String jobId) throws InterruptedException {
-        Shell shell = new Shell("#!/bin/bash +x\n bkill " + jobId);
-        shell.perform(build, launcher, listener);
+        acquirePermit(Priority.CONTROL);
+        runCommand(withDeadline("bkill " + jobId), listener);
     }
 
     @Override
@@ -131,37 +256,183 @@ public class LSF extends BatchSystem {
     }
 
     @Override
-    public void printErrorLog() throws InterruptedException {
-        listener.getLogger().println("Job exited with following errors:");
-        Shell shell = new Shell("#!/bin/bash +x\n cat errorLog");
-        shell.perform(build, launcher, listener);
+    public JobHarvest harvest(String jobId, int offset)
+            throws InterruptedException, IOException {
+        // because of the running job output headers
+        if (offset >= 3) {
+            offset = offset - 3;
+        }
+        acquirePermit(Priority.STATUS);
+        String[] parts = runQuery("bjobs -l " + jobId
+                + "; printf '\\n%s\\n' " + HARVEST_SEPARATOR
+                + "; cat errorLog"
+                + "; printf '\\n%s\\n' " + HARVEST_SEPARATOR
+                + "; tail -n+" + offset + " LSFJOB_" + jobId + "/STDOUT")
+                .split("\n" + HARVEST_SEPARATOR + "\n", -1);
+        if (parts.length != 3) {
+            throw new IOException("Failed to collect the results of job "
+                    + jobId);
+        }
+        // joins the lines that LSF wraps at 80 characters
+        String details = parts[0].replaceAll("\\r?\\n\\s+", "");
+        Matcher exitCode = EXIT_CODE.matcher(details);
+        return new JobHarvest(find(STATUS, details),
+                exitCode.find() ? Integer.valueOf(exitCode.group(1)) : null,
+                parts[1], parts[2], find(CPU_TIME, details),
+                find(MAX_MEMORY, details));
+    }
+
+    /**
+     * @return the first group of the first match or an empty string
+     */
+    private static String find(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.group(1).trim() : "";
+    }
+
+    @Override
+    public String getExitReason(String jobId)
+            throws InterruptedException, IOException {
+        // one permit for bjobs and one for bhist
+        acquirePermit(Priority.STATUS);
+        acquirePermit(Priority.STATUS);
+        // joins the lines that LSF wraps at 80 characters
+        String history = runQuery("bjobs -l " + jobId
+                + "; bhist -l " + jobId).replaceAll("\\r?\\n\\s+", "");
+        if (history.contains("TERM_PREEMPT")) {
+            return EXIT_PREEMPTED;
+        }
+        for (String reason : HOST_FAILURE_REASONS) {
+            if (history.contains(reason)) {
+                return EXIT_HOST_FAILURE;
+            }
+        }
+        return EXIT_JOB_FAILURE;
+    }
+
+    @Override
+    public void requeueJob(String jobId) throws InterruptedException {
+        acquirePermit(Priority.CONTROL);
+        runCommand(withDeadline("brequeue -e -r " + jobId), listener);
+    }
+
+    @Override
+    public String getPendingReasons(String jobId)
+            throws InterruptedException, IOException {
+        acquirePermit(Priority.STATUS);
+        String output = runQuery("bjobs -p " + jobId);
+        // the reasons follow the job line, one per line
+        int start = output.indexOf("PENDING REASONS:");
+        if (start < 0) {
+            return "";
+        }
+        StringBuilder reasons = new StringBuilder();
+        for (String line : output.substring(start
+                + "PENDING REASONS:".length()).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                reasons.append(reasons.length() > 0 ? " " : "")
+                        .append(line.trim());
+            }
+        }
+        return reasons.toString();
+    }
+
+    @Override
+    public Map<String, Integer> getOpenQueuePendingJobs(List<String> queues)
+            throws InterruptedException, IOException {
+        StringBuilder command = new StringBuilder("bqueues");
+        for (String queue : queues) {
+            command.append(" ").append(queue);
+        }
+        acquirePermit(Priority.STATUS);
+        // bqueues fails if one of the queues doesn't exist, the others are
+        // still listed
+        String output = runQuery(command + " 2>/dev/null || true");
+        Map<String, Integer> pendingJobs
+                = new LinkedHashMap<String, Integer>();
+        // QUEUE_NAME PRIO STATUS MAX JL/U JL/P JL/H NJOBS PEND RUN SUSP
+        for (String line : output.split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length >= 11 && queues.contains(columns[0])
+                    && columns[2].equals("Open:Active")) {
+                try {
+                    pendingJobs.put(columns[0], Integer.valueOf(columns[8]));
+                } catch (NumberFormatException e) {
+                    // not a line of a queue
+                }
+            }
+        }
+        return pendingJobs;
+    }
+
+    @Override
+    public void switchQueue(String jobId, String queue)
+            throws InterruptedException, IOException {
+        acquirePermit(Priority.CONTROL);
+        // not retried, a refused move is reported by the caller
+        listener.getLogger().print(runControl("bswitch " + queue + " "
+                + jobId));
     }
 
     @Override
-    public void printExitCode(String jobId)
+    public double getCpuSeconds(String jobId)
             throws InterruptedException, IOException {
-        Shell shell = new Shell("#!/bin/bash +x\n bjobs -l "
-                + jobId + " > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, fakeListener);
-        copyFileToMaster.perform(build, launcher, fakeListener);
-        String exitCode = FileUtils.readFileToString(
-                new File(masterWorkingDirectory + COMMUNICATION_FILE));
-        if (exitCode.contains("Exited with exit code ")) {
-            listener.getLogger().println();
-            exitCode = exitCode.substring(
-                    exitCode.indexOf("Exited with exit code "),
-                    exitCode.length());
-            exitCode = exitCode.substring(0, exitCode.indexOf(".") + 1);
-            listener.getLogger().println(exitCode);
+        acquirePermit(Priority.STATUS);
+        // joins the lines that LSF wraps at 80 characters
+        String details;
+        try {
+            details = runQuery("bjobs -l " + jobId);
+        } catch (IOException e) {
+            // the stall detection waits until LSF answers again
+            return -1;
         }
+        // joins the lines that LSF wraps at 80 characters
+        Matcher cpuTime = CPU_SECONDS.matcher(details.replaceAll(
+                "\\r?\\n\\s+", ""));
+        // the usage is collected a while after the job starts
+        return cpuTime.find() ? Double.parseDouble(cpuTime.group(1)) : -1;
+    }
+
+    @Override
+    public String getDiagnostics(String jobId)
+            throws InterruptedException, IOException {
+        // one permit for every command
+        for (int i = 0; i < 3; i++) {
+            acquirePermit(Priority.STATUS);
+        }
+        // bpeek shows where the output stopped, bjobs -l shows the processes
+        // of the job and their resource usage
+        return runQuery("bjobs -l " + jobId + "; bhist -l " + jobId
+                + "; bpeek " + jobId + " | tail -n 50");
+    }
+
+    @Override
+    public void limitJobGroup(String group, int maxJobs)
+            throws InterruptedException, IOException {
+        String limit = maxJobs > 0 ? "-L " + maxJobs : "-Ln";
+        acquirePermit(Priority.CONTROL);
+        // bgadd fails if the group exists, its limit is changed instead
+        runCommandForOutput(withDeadline("bgadd "
+                + (maxJobs > 0 ? limit + " " : "") + "\"" + group
+                + "\" 2>/dev/null || bgmod " + limit + " \"" + group + "\""));
+    }
+
+    @Override
+    public void killJobGroup(String group) throws InterruptedException {
+        acquirePermit(Priority.CONTROL);
+        // job id 0 stands for all the jobs of the group
+        runCommand(withDeadline("bkill -g \"" + group + "\" 0"), listener);
     }
 
     @Override
     public void createJobProgressFile(String jobId, String outputFileName)
             throws InterruptedException, IOException {
-        Shell shell = new Shell("#!/bin/bash +x\n bpeek "
-                + jobId + " > " + outputFileName);
-        shell.perform(build, launcher, listener);
+        // the output is caught up on the next update if this one is skipped
+        if (!acquirePermit(Priority.PROGRESS)) {
+            return;
+        }
+        runCommand(withDeadline("bpeek " + jobId) + " > " + outputFileName,
+                listener);
     }
 
     @Override
@@ -175,28 +446,15 @@ public class LSF extends BatchSystem {
             offset = offset + 2;
         }
         numberOfLines = numberOfLines - 2;
-        Shell shell = new Shell("#!/bin/bash +x\n tail -n+" + offset + " "
-                + outputFileName + " | head -n " + (numberOfLines - offset)
-                + " > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, fakeListener);
+        runCommand("tail -n+" + offset + " " + outputFileName + " | head -n "
+                + (numberOfLines - offset) + " > "
+                + getBuildCommandRunner().getCommunicationFile(),
+                TaskListener.NULL);
     }
 
     @Override
-    public void createFinishedJobOutputFile(String jobId, int offset)
-            throws InterruptedException {
-        // because of the running job output headers
-        if (offset >= 3) {
-            offset = offset - 3;
-        }
-        Shell shell = new Shell("#!/bin/bash +x\n tail -n+" + offset
-                + " LSFJOB_" + jobId + "/STDOUT" + " > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, listener);
-    }
-    
-    @Override
-    public void cleanUpFiles(String jobId) throws InterruptedException {
-        Shell shell = new Shell("rm -rf LSFJOB_" + jobId + " errorLog");
-        shell.perform(build, launcher, fakeListener);
+    public List<String> getJobFiles(String jobId) {
+        return Arrays.asList("LSFJOB_" + jobId, "errorLog");
     }
 
     @Override
@@ -204,6 +462,11 @@ public class LSF extends BatchSystem {
         return jobStatus.equals("RUN");
     }
 
+    @Override
+    public boolean isPendingStatus(String jobStatus) {
+        return jobStatus.equals("PEND");
+    }
+
     @Override
     public boolean isEndStatus(String jobStatus) {
         return ENDING_STATES.contains(jobStatus);
@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What is known about the LSF environment of a slave: the absolute path of
+ * its root directory, the LSF version, the cluster name and the queues that
+ * the user can submit to. The facts are probed once when the slave connects
+ * (every reconnection probes them again) and kept with the slave, so that
+ * the builds read them from memory instead of asking the slave.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class NodeFacts {
+
+    // separates the outputs of the probe commands
+    private static final String SEPARATOR = "LSF-NODE-FACTS-SEPARATOR";
+    private static final Pattern VERSION = Pattern.compile(
+            "^(.*LSF.*?)(,.*)?$", Pattern.MULTILINE);
+    private static final Pattern CLUSTER = Pattern.compile(
+            "My cluster name is (\\S+)");
+
+    // the root directory of the slave as configured and its absolute path
+    private final String rootPath;
+    private final String absoluteRootPath;
+    // empty if lsid failed
+    private final String lsfVersion;
+    private final String clusterName;
+    // empty if bqueues failed
+    private final List<String> queues;
+    // when the facts were probed
+    private final long timestamp;
+
+    public NodeFacts(String rootPath, String absoluteRootPath,
+            String lsfVersion, String clusterName, List<String> queues) {
+        this.rootPath = rootPath;
+        this.absoluteRootPath = absoluteRootPath;
+        this.lsfVersion = lsfVersion;
+        this.clusterName = clusterName;
+        this.queues = Collections.unmodifiableList(queues);
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * probes the facts of the slave in a login shell (so that the LSF
+     * environment is set) started in its root directory
+     *
+     * @param node
+     * @param listener
+     * @return the facts of the slave
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static NodeFacts probe(Node node, TaskListener listener)
+            throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new IOException(node.getNodeName() + " is offline");
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int exitStatus = node.createLauncher(listener).launch()
+                .cmds("bash", "-l", "-c", "pwd; echo " + SEPARATOR
+                        + "; lsid 2>/dev/null; echo " + SEPARATOR
+                        + "; bqueues -w 2>/dev/null")
+                .pwd(root).stdout(output).stderr(listener.getLogger())
+                .join();
+        String[] parts = output.toString("UTF-8").split(SEPARATOR + "\n", -1);
+        if (exitStatus != 0 || parts.length < 3
+                || !parts[0].trim().startsWith("/")) {
+            throw new IOException("Failed to probe the LSF environment of "
+                    + node.getNodeName());
+        }
+        String lsfVersion = "";
+        Matcher version = VERSION.matcher(parts[1]);
+        if (version.find()) {
+            lsfVersion = version.group(1).trim();
+        }
+        String clusterName = "";
+        Matcher cluster = CLUSTER.matcher(parts[1]);
+        if (cluster.find()) {
+            clusterName = cluster.group(1);
+        }
+        return new NodeFacts(root.getRemote(), parts[0].trim(), lsfVersion,
+                clusterName, parseQueues(parts[2]));
+    }
+
+    /**
+     * @param output output of bqueues -w
+     * @return the names of the queues in the output
+     */
+    static List<String> parseQueues(String output) {
+        List<String> queues = new ArrayList<String>();
+        for (String line : output.split("\n")) {
+            String name = line.trim().split("\\s+")[0];
+            // QUEUE_NAME PRIO STATUS MAX JL/U JL/P JL/H NJOBS PEND RUN SUSP
+            if (!name.isEmpty() && !name.equals("QUEUE_NAME")) {
+                queues.add(name);
+            }
+        }
+        return queues;
+    }
+
+    /**
+     * @param remotePath a path on the slave (e.g. the workspace of a build)
+     * @return the absolute path or null if it can't be told without asking
+     * the slave
+     */
+    public String toAbsolute(String remotePath) {
+        if (remotePath.startsWith("/")) {
+            return remotePath;
+        }
+        // relative paths of the slave are relative to the same directory as
+        // its root directory
+        if (remotePath.equals(rootPath)) {
+            return absoluteRootPath;
+        }
+        if (remotePath.startsWith(rootPath + "/")) {
+            return absoluteRootPath + remotePath.substring(rootPath.length());
+        }
+        return null;
+    }
+
+    /**
+     * @param queue
+     * @return true if the user can submit to the queue (or if the queues
+     * couldn't be listed)
+     */
+    public boolean hasQueue(String queue) {
+        return queues.isEmpty() || queues.contains(queue);
+    }
+
+    public String getAbsoluteRootPath() {
+        return absoluteRootPath;
+    }
+
+    public String getLsfVersion() {
+        return lsfVersion;
+    }
+
+    public String getClusterName() {
+        return clusterName;
+    }
+
+    public List<String> getQueues() {
+        return queues;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Probes the facts of the LSF slaves whenever they connect.
+     */
+    @Extension
+    public static class Probe extends ComputerListener {
+
+        @Override
+        public void onOnline(Computer computer, TaskListener listener)
+                throws IOException, InterruptedException {
+            Node node = computer.getNode();
+            if (!(node instanceof BatchSlave)) {
+                return;
+            }
+            BatchSlave slave = (BatchSlave) node;
+            // the facts of the previous connection may be stale
+            slave.setNodeFacts(null);
+            try {
+                slave.setNodeFacts(probe(slave, listener));
+            } catch (IOException e) {
+                // the builds probe what they need themselves
+                listener.error(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the work that is left once the result of an LSF build is final (the
+ * background downloads and the removal of the temporary files from the
+ * slave) on a few shared threads, so that the builds free their executors
+ * as soon as their jobs end.
+ *
+ * The queue of the pipeline is bounded: when it is full, the build that adds
+ * more work does it on its own thread instead of the work piling up in
+ * memory. A failed step is reported in the log and the remaining steps of
+ * the same work still run.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class PostProcessingPipeline {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(PostProcessingPipeline.class.getName());
+
+    private static final int THREADS = Integer.getInteger(
+            PostProcessingPipeline.class.getName() + ".threads", 2);
+    // how many pieces of work may wait for a thread
+    private static final int CAPACITY = Integer.getInteger(
+            PostProcessingPipeline.class.getName() + ".capacity", 100);
+
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(CAPACITY),
+            new NamingThreadFactory(new DaemonThreadFactory(),
+                    "PostProcessingPipeline"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private PostProcessingPipeline() {
+    }
+
+    /**
+     * runs the steps one after the other in the background
+     *
+     * @param owner what the work belongs to (e.g. the build), for the log
+     * @param steps
+     */
+    public static void submit(String owner, List<Step> steps) {
+        submit(owner, steps, null);
+    }
+
+    /**
+     * runs the steps one after the other in the background
+     *
+     * @param owner what the work belongs to (e.g. the build), for the log
+     * @param steps
+     * @param whenDone run after the steps, even if they failed (may be null)
+     */
+    public static void submit(final String owner, final List<Step> steps,
+            final Runnable whenDone) {
+        POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Step step : steps) {
+                        try {
+                            step.run();
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to "
+                                    + step.getDescription() + " for "
+                                    + owner, e);
+                            step.failed(e);
+                        }
+                    }
+                } finally {
+                    if (whenDone != null) {
+                        whenDone.run();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A step of the work.
+     */
+    public abstract static class Step {
+
+        // what the step does, for the log (e.g. "download results.dat")
+        private final String description;
+
+        protected Step(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public abstract void run() throws IOException, InterruptedException;
+
+        /**
+         * called when the step failed (after the failure is logged)
+         *
+         * @param e
+         */
+        protected void failed(IOException e) {
+        }
+    }
+}
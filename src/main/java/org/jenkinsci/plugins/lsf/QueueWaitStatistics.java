@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How long the latest jobs of a cloud's builds waited in every LSF queue
+ * before they were dispatched, as seen by the status checks of the builds.
+ * A job that stopped waiting without being dispatched (it was killed or moved
+ * to another queue while pending) leaves a censored wait: it is only known to be at least that long.
+ * The statistics are kept in memory and start again when Jenkins restarts.
+ *
+ * There is one instance per cloud, shared by all of its builds.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class QueueWaitStatistics {
+
+    // how many of the latest waits are kept per queue
+    private static final int MAX_SAMPLES = 50;
+
+    private static final Map<String, QueueWaitStatistics> STATISTICS
+            = new HashMap<String, QueueWaitStatistics>();
+
+    // the latest waits by queue, oldest first
+    private final Map<String, LinkedList<Wait>> waits
+            = new HashMap<String, LinkedList<Wait>>();
+
+    private QueueWaitStatistics() {
+    }
+
+    /**
+     * @param cloud
+     * @return the statistics of the cloud
+     */
+    public static QueueWaitStatistics forCloud(BatchCloud cloud) {
+        synchronized (STATISTICS) {
+            QueueWaitStatistics statistics = STATISTICS.get(cloud.name);
+            if (statistics == null) {
+                statistics = new QueueWaitStatistics();
+                STATISTICS.put(cloud.name, statistics);
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * @param queue
+     * @param waitMilliseconds how long a job pended before it was dispatched
+     */
+    public synchronized void record(String queue, long waitMilliseconds) {
+        add(queue, new Wait(waitMilliseconds, false));
+    }
+
+    /**
+     * @param queue
+     * @param waitMilliseconds how long a job pended before it was killed
+     * (e.g. its build was aborted) or moved to another queue without being
+     * dispatched
+     */
+    public synchronized void recordCensored(String queue,
+            long waitMilliseconds) {
+        add(queue, new Wait(waitMilliseconds, true));
+    }
+
+    private void add(String queue, Wait wait) {
+        LinkedList<Wait> queueWaits = waits.get(queue);
+        if (queueWaits == null) {
+            queueWaits = new LinkedList<Wait>();
+            waits.put(queue, queueWaits);
+        }
+        queueWaits.add(wait);
+        if (queueWaits.size() > MAX_SAMPLES) {
+            queueWaits.removeFirst();
+        }
+    }
+
+    /**
+     * estimates the median with the censored waits as lower bounds
+     * (Kaplan-Meier): a censored wait counts towards every shorter wait and
+     * drops out at its own length
+     *
+     * @param queue
+     * @return the median of the latest waits in the queue, the longest wait
+     * if more than half of them are censored (the median is at least that
+     * long) or -1 if none was recorded
+     */
+    public synchronized long getMedianWait(String queue) {
+        LinkedList<Wait> queueWaits = waits.get(queue);
+        if (queueWaits == null || queueWaits.isEmpty()) {
+            return -1;
+        }
+        List<Wait> sorted = new ArrayList<Wait>(queueWaits);
+        Collections.sort(sorted);
+        // the share of the jobs still waiting after every wait
+        double waiting = 1;
+        int atRisk = sorted.size();
+        for (Wait wait : sorted) {
+            if (!wait.censored) {
+                waiting *= (atRisk - 1) / (double) atRisk;
+                if (waiting <= 0.5) {
+                    return wait.milliseconds;
+                }
+            }
+            atRisk--;
+        }
+        return sorted.get(sorted.size() - 1).milliseconds;
+    }
+
+    private static class Wait implements Comparable<Wait> {
+
+        private final long milliseconds;
+        // the job was killed before it was dispatched
+        private final boolean censored;
+
+        private Wait(long milliseconds, boolean censored) {
+            this.milliseconds = milliseconds;
+            this.censored = censored;
+        }
+
+        @Override
+        public int compareTo(Wait other) {
+            if (milliseconds != other.milliseconds) {
+                return milliseconds < other.milliseconds ? -1 : 1;
+            }
+            // a job dispatched after a wait was still waiting when another
+            // one was killed after the same wait
+            return censored == other.censored ? 0 : (censored ? 1 : -1);
+        }
+    }
+}
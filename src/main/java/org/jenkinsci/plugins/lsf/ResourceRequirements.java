@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * What a job needs from the cluster: the number of slots, the memory per
+ * host, how the slots are spread over the hosts (span), the CPU and memory
+ * affinity, exclusive use of the hosts and the hosts it may run on. The
+ * build steps set them and the cloud has the defaults for the ones that
+ * aren't set. The batch system turns them into submission options.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ResourceRequirements {
+
+    private static final Pattern SPAN = Pattern.compile(
+            "hosts=(1|-1)|ptile=[1-9]\\d*");
+    private static final Pattern AFFINITY = Pattern.compile(
+            "[a-z]+\\([0-9][A-Za-z0-9,=]*\\)[A-Za-z0-9(),:=*_.-]*");
+    private static final Pattern HOSTS = Pattern.compile(
+            "[A-Za-z0-9._+-]+( +[A-Za-z0-9._+-]+)*");
+
+    // 0 if not set
+    private final int slots;
+    // in MB, 0 if not set
+    private final int memoryMB;
+    // e.g. hosts=1 or ptile=4 (empty if not set)
+    private final String span;
+    // e.g. core(1):cpubind=core (empty if not set)
+    private final String affinity;
+    private final boolean exclusive;
+    // space separated hosts or host groups (empty if not set)
+    private final String hosts;
+
+    public ResourceRequirements(int slots, int memoryMB, String span,
+            String affinity, boolean exclusive, String hosts) {
+        this.slots = slots;
+        this.memoryMB = memoryMB;
+        this.span = trim(span);
+        this.affinity = trim(affinity);
+        this.exclusive = exclusive;
+        this.hosts = trim(hosts);
+    }
+
+    private static String trim(String value) {
+        return value == null ? "" : value.trim();
+    }
+
+    /**
+     * @param defaults
+     * @return these requirements with the ones that aren't set taken from
+     * the defaults
+     */
+    public ResourceRequirements withDefaults(ResourceRequirements defaults) {
+        return new ResourceRequirements(
+                slots > 0 ? slots : defaults.slots,
+                memoryMB > 0 ? memoryMB : defaults.memoryMB,
+                !span.isEmpty() ? span : defaults.span,
+                !affinity.isEmpty() ? affinity : defaults.affinity,
+                exclusive || defaults.exclusive,
+                !hosts.isEmpty() ? hosts : defaults.hosts);
+    }
+
+    /**
+     * @return true if no requirement is set
+     */
+    public boolean isEmpty() {
+        return slots <= 0 && memoryMB <= 0 && span.isEmpty()
+                && affinity.isEmpty() && !exclusive && hosts.isEmpty();
+    }
+
+    /**
+     * @throws IOException if a requirement is malformed
+     */
+    public void validate() throws IOException {
+        String error = checkCount(slots, "slots");
+        if (error == null) {
+            error = checkCount(memoryMB, "memory");
+        }
+        if (error == null) {
+            error = checkSpan(span);
+        }
+        if (error == null) {
+            error = checkAffinity(affinity);
+        }
+        if (error == null) {
+            error = checkHosts(hosts);
+        }
+        if (error == null && span.startsWith("ptile=") && slots > 0
+                && Integer.parseInt(span.substring(6)) > slots) {
+            error = "The job has fewer slots (" + slots + ") than " + span;
+        }
+        if (error != null) {
+            throw new IOException("Invalid resource requirements: " + error);
+        }
+    }
+
+    /**
+     * @param value
+     * @param name
+     * @return the error or null if the value is valid
+     */
+    static String checkCount(int value, String name) {
+        return value < 0 ? "The number of " + name + " can't be negative"
+                : null;
+    }
+
+    /**
+     * @param value
+     * @return the error or null if the value is valid
+     */
+    static String checkSpan(String value) {
+        return trim(value).isEmpty() || SPAN.matcher(trim(value)).matches()
+                ? null : "The span must be hosts=1, hosts=-1 or ptile=<n>";
+    }
+
+    /**
+     * @param value
+     * @return the error or null if the value is valid
+     */
+    static String checkAffinity(String value) {
+        return trim(value).isEmpty()
+                || AFFINITY.matcher(trim(value)).matches() ? null
+                : "The affinity must look like core(1) or "
+                + "core(2,same=socket):cpubind=core";
+    }
+
+    /**
+     * @param value
+     * @return the error or null if the value is valid
+     */
+    static String checkHosts(String value) {
+        return trim(value).isEmpty() || HOSTS.matcher(trim(value)).matches()
+                ? null : "The hosts must be host or host group names "
+                + "separated by spaces";
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getMemoryMB() {
+        return memoryMB;
+    }
+
+    public String getSpan() {
+        return span;
+    }
+
+    public String getAffinity() {
+        return affinity;
+    }
+
+    public boolean isExclusive() {
+        return exclusive;
+    }
+
+    public String getHosts() {
+        return hosts;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Cache of the results of successful LSF jobs.
+ *
+ * A result is stored under the digest of everything that determines it (the
+ * job script, the contents of the input files, the queue and the build
+ * variables) and consists of the job output and the downloaded files. When
+ * the cache grows over its size limit the least recently used results are
+ * evicted.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ResultCache {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(ResultCache.class.getName());
+
+    // name of the file in which the job output is stored
+    private static final String CONSOLE_FILE = "console.log";
+    // name of the directory in which the downloaded files are stored
+    private static final String OUTPUTS_DIRECTORY = "outputs";
+
+    private final File directory;
+    private final long maxSizeBytes;
+
+    /**
+     * @param directory the directory that holds the cached results
+     * @param maxSizeBytes the maximum total size of the cached results
+     */
+    public ResultCache(File directory, long maxSizeBytes) {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @param job the batch job script
+     * @param inputFiles the files that are sent to the batch system
+     * @param queueType the queue to which the job would be submitted
+     * @param environment the build variables
+     * @param outputFiles the files that are downloaded after the job
+     * completion (the result consists of them)
+     * @param downloadDestination where the files are downloaded
+     * @return the key under which the result of the job is cached
+     * @throws IOException
+     */
+    public static String computeKey(String job, List<File> inputFiles,
+            String queueType, Map<String, String> environment,
+            List<String> outputFiles, String downloadDestination)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        update(digest, job);
+        update(digest, String.valueOf(queueType));
+        for (File input : inputFiles) {
+            update(digest, input.getName());
+            InputStream in = new FileInputStream(input);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        // sorted so that the key doesn't depend on the order of the files
+        for (String output : new TreeSet<String>(outputFiles)) {
+            update(digest, output);
+        }
+        update(digest, String.valueOf(downloadDestination));
+        // sorted so that the key doesn't depend on the order of the variables
+        for (Map.Entry<String, String> variable
+                : new TreeMap<String, String>(environment).entrySet()) {
+            update(digest, variable.getKey() + "=" + variable.getValue());
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, String value)
+            throws IOException {
+        digest.update(value.getBytes("UTF-8"));
+        // separates the values so that their boundaries are part of the key
+        digest.update((byte) 0);
+    }
+
+    /**
+     * restores a cached result
+     *
+     * @param key the key of the result
+     * @param destination the directory to which the cached files are copied
+     * @return the cached job output or null if the result isn't cached
+     */
+    public String restore(String key, File destination) {
+        synchronized (ResultCache.class) {
+            File entry = new File(directory, key);
+            File console = new File(entry, CONSOLE_FILE);
+            if (!console.isFile()) {
+                return null;
+            }
+            try {
+                File outputs = new File(entry, OUTPUTS_DIRECTORY);
+                if (outputs.isDirectory()) {
+                    FileUtils.copyDirectory(outputs, destination);
+                }
+                // marks the result as recently used
+                entry.setLastModified(System.currentTimeMillis());
+                return FileUtils.readFileToString(console);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to restore cached LSF result "
+                        + key, e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * stores the result of a successful job and evicts the least recently used
+     * results if the cache is over its size limit
+     *
+     * @param key the key of the result
+     * @param output the job output
+     * @param downloadDirectory the directory to which the files were downloaded
+     * @param downloadedFiles the files downloaded after the job completion
+     * (relative to the download directory)
+     */
+    public void store(String key, String output, File downloadDirectory,
+            List<String> downloadedFiles) {
+        synchronized (ResultCache.class) {
+            File entry = new File(directory, key);
+            File tmp = new File(directory, key + ".tmp");
+            try {
+                FileUtils.deleteDirectory(tmp);
+                File outputs = new File(tmp, OUTPUTS_DIRECTORY);
+                for (String file : downloadedFiles) {
+                    File downloaded = new File(downloadDirectory, file);
+                    if (downloaded.isFile()) {
+                        FileUtils.copyFile(downloaded, new File(outputs, file));
+                    }
+                }
+                FileUtils.writeStringToFile(new File(tmp, CONSOLE_FILE),
+                        output, "UTF-8");
+                FileUtils.deleteDirectory(entry);
+                if (!tmp.renameTo(entry)) {
+                    throw new IOException("Failed to rename " + tmp);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to cache LSF result " + key,
+                        e);
+                FileUtils.deleteQuietly(tmp);
+                return;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * removes the least recently used results until the cache fits its limit
+     */
+    private void evict() {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (File entry : entries) {
+            totalSize += FileUtils.sizeOf(entry);
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified())
+                        .compareTo(b.lastModified());
+            }
+        });
+        for (File entry : entries) {
+            if (totalSize <= maxSizeBytes) {
+                break;
+            }
+            long size = FileUtils.sizeOf(entry);
+            FileUtils.deleteQuietly(entry);
+            totalSize -= size;
+            LOGGER.log(Level.FINE, "Evicted cached LSF result {0}",
+                    entry.getName());
+        }
+    }
+}
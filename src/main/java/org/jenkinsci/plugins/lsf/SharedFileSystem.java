@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A file system that is mounted both on master and on the slave, so that the
+ * files of the slave can be read and written by master in place instead of
+ * being copied between them.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class SharedFileSystem {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // where the file system is mounted on the slave
+    private final String slavePath;
+    // where the same file system is mounted on master
+    private final String masterPath;
+
+    public SharedFileSystem(String slavePath, String masterPath) {
+        this.slavePath = trimSeparator(slavePath);
+        this.masterPath = trimSeparator(masterPath);
+    }
+
+    private static String trimSeparator(String path) {
+        path = path.trim();
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * @param slaveFile path of a file in the slave
+     * @return the same file as seen from master or null if the file is not in
+     * the shared file system
+     */
+    public File toMaster(String slaveFile) {
+        if (slaveFile.equals(slavePath)
+                || slaveFile.startsWith(slavePath + "/")) {
+            return new File(masterPath
+                    + slaveFile.substring(slavePath.length()));
+        }
+        return null;
+    }
+
+    /**
+     * @param slaveDirectory path of a directory in the slave
+     * @return true if master can see the directory through the shared file
+     * system
+     */
+    public boolean isShared(String slaveDirectory) {
+        File directory = toMaster(slaveDirectory);
+        return directory != null && directory.isDirectory();
+    }
+
+    /**
+     * reads the whole file through a memory mapping, without copying it
+     * through the Java heap in chunks
+     *
+     * @param file
+     * @return the contents of the file
+     * @throws IOException
+     */
+    public static String read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return UTF_8.decode(buffer).toString();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.InvisibleAction;
+import java.io.File;
+
+/**
+ * An LSF job which was submitted for a build while the build was still in the
+ * Jenkins queue. The action is added to the queue item and is carried over to
+ * the build, which adopts the job instead of submitting its own. The job is
+ * staged in its own directory in the file system that master shares with the
+ * slaves, since the build has no workspace yet.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class SpeculativeJob extends InvisibleAction {
+
+    private final String cloudName;
+    // the directory (as seen from the slaves) in which the job was staged
+    private final String directory;
+    private final String jobFileName;
+    // the build step whose job this is (see BatchBuilder.getStepKey)
+    private final String stepKey;
+    // set once the job is submitted
+    private String jobId;
+    // set if the job couldn't be staged or submitted
+    private String failure;
+    // set when a build took the job over
+    private boolean claimed;
+    // set when the queue item was cancelled or the build ended without
+    // adopting the job
+    private boolean discarded;
+    // when the staging started and when the job was submitted
+    private long submissionStart;
+    private long submissionEnd;
+
+    public SpeculativeJob(String cloudName, String directory,
+            String jobFileName, String stepKey) {
+        this.cloudName = cloudName;
+        this.directory = directory;
+        this.jobFileName = jobFileName;
+        this.stepKey = stepKey;
+        this.submissionStart = System.currentTimeMillis();
+    }
+
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public String getJobFileName() {
+        return jobFileName;
+    }
+
+    public String getStepKey() {
+        return stepKey;
+    }
+
+    public synchronized String getJobId() {
+        return jobId;
+    }
+
+    public synchronized long getSubmissionStart() {
+        return submissionStart;
+    }
+
+    public synchronized long getSubmissionEnd() {
+        return submissionEnd;
+    }
+
+    /**
+     * records the id of the submitted job
+     *
+     * @param jobId
+     * @return false if the job isn't wanted anymore and should be killed
+     */
+    public synchronized boolean submitted(String jobId) {
+        this.jobId = jobId;
+        this.submissionEnd = System.currentTimeMillis();
+        notifyAll();
+        return !discarded;
+    }
+
+    /**
+     * records that the job couldn't be submitted
+     *
+     * @param reason
+     */
+    public synchronized void failed(String reason) {
+        this.failure = reason;
+        notifyAll();
+    }
+
+    /**
+     * takes the job over for the build, waiting for its submission if it is
+     * still being submitted
+     *
+     * @param maxWaitMilliseconds
+     * @return the id of the job or null if the build should submit its own
+     * job
+     * @throws InterruptedException
+     */
+    public synchronized String claim(long maxWaitMilliseconds)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMilliseconds;
+        while (jobId == null && failure == null && !discarded) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            wait(wait);
+        }
+        if (jobId == null || discarded) {
+            // a job submitted later is killed by the submitter
+            discarded = true;
+            return null;
+        }
+        claimed = true;
+        return jobId;
+    }
+
+    /**
+     * marks the job as not wanted anymore unless a build has adopted it
+     *
+     * @return the id of the job to kill (null if there is none yet or the
+     * job was adopted)
+     */
+    public synchronized String discard() {
+        if (claimed || discarded) {
+            return null;
+        }
+        discarded = true;
+        notifyAll();
+        return jobId;
+    }
+
+    public synchronized String getFailure() {
+        return failure;
+    }
+
+    /**
+     * @param sharedFileSystem
+     * @return the staging directory as seen from master or null if it is
+     * not in the shared file system
+     */
+    public File getMasterDirectory(SharedFileSystem sharedFileSystem) {
+        return sharedFileSystem.toMaster(directory);
+    }
+}
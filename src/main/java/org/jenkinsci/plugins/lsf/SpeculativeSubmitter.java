@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.ParametersAction;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.Cloud;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.BuildListenerAdapter;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Submits the LSF job of a build as soon as the build enters the Jenkins
+ * queue (for the projects whose LSF build step has "Submit while queued"
+ * checked), so that the job waits in the LSF queue while the slave for the
+ * build is provisioned. The job is killed if the queue item is cancelled or
+ * if the build ends without adopting it.
+ *
+ * @author Laisvydas Skurevicius
+ */
+@Extension
+public class SpeculativeSubmitter extends QueueListener {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(SpeculativeSubmitter.class.getName());
+
+    // the directory (inside the shared file system) in which the jobs of the
+    // queued builds are staged
+    private static final String STAGING_DIRECTORY = "lsf-queued-jobs";
+
+    // stages and submits the jobs so that the queue isn't held up by LSF
+    private static final ExecutorService SUBMISSION_POOL
+            = Executors.newFixedThreadPool(Integer.getInteger(
+                            SpeculativeSubmitter.class.getName()
+                            + ".submissionThreads", 4),
+                    new NamingThreadFactory(new DaemonThreadFactory(),
+                            "SpeculativeSubmitter.submit"));
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem item) {
+        if (!(item.task instanceof Project)
+                || item.getAction(ParametersAction.class) != null) {
+            // the job of a parameterized build depends on its parameters
+            return;
+        }
+        final Project<?, ?> project = (Project<?, ?>) item.task;
+        final BatchBuilder builder = getBuilder(project);
+        if (builder == null) {
+            return;
+        }
+        final BatchCloud cloud = BatchCloud.getCloud(project);
+        if (cloud == null || cloud.getSharedFileSystem() == null) {
+            return;
+        }
+        final SpeculativeJob speculativeJob = new SpeculativeJob(
+                cloud.name, cloud.getSharedSlavePath().trim() + "/"
+                + STAGING_DIRECTORY + "/" + UUID.randomUUID().toString(),
+                "JOB-" + UUID.randomUUID().toString(),
+                builder.getStepKey(project));
+        item.addAction(speculativeJob);
+        SUBMISSION_POOL.submit(new Runnable() {
+            @Override
+            public void run() {
+                submit(project, builder, cloud, speculativeJob);
+            }
+        });
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        if (!item.isCancelled()) {
+            return;
+        }
+        final SpeculativeJob speculativeJob
+                = item.getAction(SpeculativeJob.class);
+        if (speculativeJob == null) {
+            return;
+        }
+        SUBMISSION_POOL.submit(new Runnable() {
+            @Override
+            public void run() {
+                discard(speculativeJob, "the queue item was cancelled");
+            }
+        });
+    }
+
+    /**
+     * @param project
+     * @return the LSF build step that is submitted while queued or null if
+     * the project has none
+     */
+    private static BatchBuilder getBuilder(Project<?, ?> project) {
+        for (Builder builder : project.getBuilders()) {
+            if (builder instanceof BatchBuilder
+                    && ((BatchBuilder) builder).getSubmitWhileQueued()) {
+                return (BatchBuilder) builder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param cloudName
+     * @return the cloud with the given name or null if it was removed
+     */
+    private static BatchCloud getCloud(String cloudName) {
+        Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
+        return cloud instanceof BatchCloud ? (BatchCloud) cloud : null;
+    }
+
+    private static LSF getBatchSystem(BatchCloud cloud, String directory) {
+        LSF batchSystem = new LSF(ClusterChannel.forCloud(cloud),
+                new BuildListenerAdapter(
+                        new LogTaskListener(LOGGER, Level.FINE)));
+        cloud.configureCommands(batchSystem);
+        batchSystem.setCommandDirectory(directory);
+        return batchSystem;
+    }
+
+    private static void submit(Project<?, ?> project, BatchBuilder builder,
+            BatchCloud cloud, SpeculativeJob speculativeJob) {
+        SharedFileSystem shared = cloud.getSharedFileSystem();
+        File masterDirectory = speculativeJob.getMasterDirectory(shared);
+        LSF batchSystem = getBatchSystem(cloud,
+                speculativeJob.getDirectory());
+        try {
+            if (masterDirectory == null || !masterDirectory.mkdirs()) {
+                throw new IOException("Failed to create "
+                        + speculativeJob.getDirectory());
+            }
+            batchSystem.setJobGroup(cloud.getJobGroups().prepare(batchSystem,
+                    cloud, project.getFullName()));
+            String jobId = builder.submitWhileQueued(project, cloud,
+                    batchSystem, speculativeJob);
+            LOGGER.log(Level.FINE, "Submitted LSF job {0} for queued {1}",
+                    new Object[]{jobId, project.getFullName()});
+            if (!speculativeJob.submitted(jobId)) {
+                // cancelled while it was being submitted
+                batchSystem.killJob(jobId);
+                FileUtils.deleteQuietly(masterDirectory);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to submit the LSF job of queued "
+                    + project.getFullName() + ", the build submits it", e);
+            speculativeJob.failed(e.getMessage());
+            FileUtils.deleteQuietly(masterDirectory);
+        } catch (InterruptedException e) {
+            speculativeJob.failed("Interrupted");
+            FileUtils.deleteQuietly(masterDirectory);
+        }
+    }
+
+    /**
+     * kills the job unless a build has adopted it and removes its directory
+     *
+     * @param speculativeJob
+     * @param reason
+     */
+    static void discard(SpeculativeJob speculativeJob, String reason) {
+        String jobId = speculativeJob.discard();
+        BatchCloud cloud = getCloud(speculativeJob.getCloudName());
+        if (jobId == null || cloud == null) {
+            // the submitter cleans up the job that is still being submitted
+            return;
+        }
+        LOGGER.log(Level.INFO, "Killing LSF job {0}, {1}",
+                new Object[]{jobId, reason});
+        try {
+            getBatchSystem(cloud, speculativeJob.getDirectory())
+                    .killJob(jobId);
+        } catch (InterruptedException e) {
+            return;
+        }
+        SharedFileSystem shared = cloud.getSharedFileSystem();
+        if (shared != null) {
+            FileUtils.deleteQuietly(speculativeJob.getMasterDirectory(shared));
+        }
+    }
+
+    /**
+     * Kills the jobs that were submitted for builds that ended without
+     * adopting them (e.g. an earlier build step failed or the result was
+     * found in the result cache).
+     */
+    @Extension
+    public static class RunListenerImpl extends RunListener<AbstractBuild> {
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            final SpeculativeJob speculativeJob
+                    = build.getAction(SpeculativeJob.class);
+            if (speculativeJob == null) {
+                return;
+            }
+            SUBMISSION_POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    discard(speculativeJob, "its build didn't adopt it");
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Util;
+
+/**
+ * Tells when a running job has stalled: neither its output nor the CPU time
+ * it used have grown for the given window (e.g. a deadlocked MPI rank or a
+ * read hung on NFS).
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class StallDetector {
+
+    // CPU time growth below this is measurement noise, not progress
+    private static final double MIN_CPU_PROGRESS_SECONDS = 1;
+
+    private final long windowMilliseconds;
+    // the CPU time and the output lines when the job last made progress
+    private double cpuSeconds = -1;
+    private int outputLines = -1;
+    // when the job last made progress (or the detector was reset)
+    private long lastProgress;
+
+    /**
+     * @param windowMinutes how long the job may make no progress
+     */
+    public StallDetector(int windowMinutes) {
+        this.windowMilliseconds = windowMinutes * 60000L;
+        this.lastProgress = System.currentTimeMillis();
+    }
+
+    /**
+     * records the current progress of the job
+     *
+     * @param cpuSeconds the CPU time used by the job (negative if unknown)
+     * @param outputLines the lines of output written by the job
+     * @return true if the job made no progress for the whole window
+     */
+    public boolean update(double cpuSeconds, int outputLines) {
+        long now = System.currentTimeMillis();
+        if (cpuSeconds - this.cpuSeconds >= MIN_CPU_PROGRESS_SECONDS
+                || outputLines > this.outputLines) {
+            this.cpuSeconds = Math.max(cpuSeconds, this.cpuSeconds);
+            this.outputLines = Math.max(outputLines, this.outputLines);
+            lastProgress = now;
+            return false;
+        }
+        return now - lastProgress >= windowMilliseconds;
+    }
+
+    /**
+     * starts the window again (e.g. once the stall was acted upon)
+     */
+    public void reset() {
+        lastProgress = System.currentTimeMillis();
+    }
+
+    /**
+     * forgets the progress of the job (e.g. once it was requeued and its
+     * output starts from the beginning)
+     */
+    public void restart() {
+        cpuSeconds = -1;
+        outputLines = -1;
+        reset();
+    }
+
+    /**
+     * @return how long the job made no progress
+     */
+    public String getStallTimeString() {
+        return Util.getTimeSpanString(System.currentTimeMillis()
+                - lastProgress);
+    }
+}